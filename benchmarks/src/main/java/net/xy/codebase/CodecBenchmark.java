@@ -0,0 +1,104 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * full decode as baseline of the region decode, encoding by the pooled writers and buffer, and the aspect
+ * calculation, independent of the quality presets
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({ "640x480-rgb.jpg", "1920x1080-rgb.jpg", "4000x3000-rgb.jpg", "2048x2048-gray.jpg",
+            "1920x1080-rgb.png", "1200x800-argb.png", "800x600-indexed.gif" })
+    public String fixture;
+    /**
+     * encoder quality 0-100, -1 for the encoders default
+     */
+    @Param({ "-1", "80" })
+    public int encoderQuality;
+
+    private File source;
+    private BufferedImage preview;
+    private String format;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Fixtures.get(fixture);
+        final BufferedImage decoded = ImageIO.read(source);
+        width = decoded.getWidth();
+        height = decoded.getHeight();
+        preview = Image.resize(decoded, new Dimension(800, 0), Image.Quality.HIGH);
+        format = fixture.substring(fixture.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(source);
+    }
+
+    /**
+     * encodes an 800 pixel wide preview in the format of the fixture
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return EncodeBuffer.encode(preview, format, encoderQuality);
+    }
+
+    /**
+     * @return
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Rectangle calculate() {
+        return Image.crop(width, height, new Dimension(320, 240));
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+/**
+ * generated benchmark corpus of various sizes, aspects, color models and formats. the images are photo like
+ * gradients with soft shapes and sensor noise, deterministic by their name and written once below the fixture
+ * directory.
+ * 
+ * @author xyan
+ * 
+ */
+final class Fixtures {
+    /**
+     * all fixtures named "[width]x[height]-[rgb|argb|gray|indexed].[format]"
+     */
+    static final String[] CORPUS = { "640x480-rgb.jpg", "1920x1080-rgb.jpg", "4000x3000-rgb.jpg",
+            "1080x1920-rgb.jpg", "3000x1000-rgb.jpg", "2048x2048-gray.jpg", "1920x1080-rgb.png",
+            "1200x800-argb.png", "800x600-indexed.gif" };
+    private static final Pattern NAME = Pattern.compile("(\\d+)x(\\d+)-(\\w+)\\.(\\w+)");
+
+    private Fixtures() {
+    }
+
+    /**
+     * gets the fixture directory, target/fixtures unless set by -Dfixtures
+     * 
+     * @return
+     */
+    static File directory() {
+        final File ret = new File(System.getProperty("fixtures", "target/fixtures"));
+        if (!ret.isDirectory() && !ret.mkdirs()) {
+            throw new IllegalStateException(Debug.values("Unable to create fixture directory", ret));
+        }
+        return ret;
+    }
+
+    /**
+     * gets an fixture, generates it if missing
+     * 
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    static File get(final String name) throws IOException {
+        final File ret = new File(directory(), name);
+        if (ret.isFile()) {
+            return ret;
+        }
+        final Matcher spec = NAME.matcher(name);
+        if (!spec.matches()) {
+            throw new IllegalArgumentException(Debug.values("Unknown fixture", name));
+        }
+        final BufferedImage image = generate(Integer.parseInt(spec.group(1)), Integer.parseInt(spec.group(2)),
+                spec.group(3), name.hashCode());
+        final File temp = new File(ret.getPath() + ".tmp");
+        if (!ImageIO.write(image, spec.group(4), temp)) {
+            throw new IllegalStateException(Debug.values("No imagewriter for fixture", name));
+        }
+        if (!temp.renameTo(ret)) {
+            throw new IOException(Debug.values("Unable to store fixture", ret));
+        }
+        return ret;
+    }
+
+    /**
+     * generates all fixtures
+     * 
+     * @throws IOException
+     */
+    static void generateAll() throws IOException {
+        for (final String name : CORPUS) {
+            get(name);
+        }
+    }
+
+    /**
+     * paints an image of an color model
+     * 
+     * @param width
+     * @param height
+     * @param model
+     *            rgb, argb, gray or indexed
+     * @param seed
+     * @return
+     */
+    static BufferedImage generate(final int width, final int height, final String model, final long seed) {
+        final boolean alpha = "argb".equals(model);
+        final BufferedImage rgb = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(seed);
+        final int blobs = 12;
+        final double[] bx = new double[blobs];
+        final double[] by = new double[blobs];
+        final double[] br = new double[blobs];
+        final int[] bc = new int[blobs];
+        for (int i = 0; i < blobs; i++) {
+            bx[i] = random.nextDouble() * width;
+            by[i] = random.nextDouble() * height;
+            br[i] = (0.05 + random.nextDouble() * 0.25) * Math.min(width, height);
+            bc[i] = random.nextInt();
+        }
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = 255.0 * x / width;
+                double g = 255.0 * y / height;
+                double b = 128;
+                for (int i = 0; i < blobs; i++) {
+                    final double dx = (x - bx[i]) / br[i];
+                    final double dy = (y - by[i]) / br[i];
+                    final double w = Math.exp(-(dx * dx + dy * dy));
+                    r += w * ((bc[i] >> 16 & 0xff) - r);
+                    g += w * ((bc[i] >> 8 & 0xff) - g);
+                    b += w * ((bc[i] & 0xff) - b);
+                }
+                final int noise = random.nextInt(17) - 8;
+                final int a = alpha ? 255 * x / width : 255;
+                row[x] = a << 24 | clamp(r + noise) << 16 | clamp(g + noise) << 8 | clamp(b + noise);
+            }
+            rgb.setRGB(0, y, width, 1, row, 0, width);
+        }
+        if ("gray".equals(model) || "indexed".equals(model)) {
+            final BufferedImage ret = new BufferedImage(width, height, "gray".equals(model)
+                    ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_BYTE_INDEXED);
+            final Graphics2D g = ret.createGraphics();
+            g.drawImage(rgb, 0, 0, null);
+            g.dispose();
+            return ret;
+        }
+        return rgb;
+    }
+
+    /**
+     * @param value
+     * @return value in 0-255
+     */
+    private static int clamp(final double value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * writes the corpus ahead of an benchmark run
+     * 
+     * @param args
+     * @throws IOException
+     */
+    public static void main(final String[] args) throws IOException {
+        generateAll();
+        System.out.println(Debug.values("Fixtures written", directory().getAbsolutePath()));
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * decode, resize and the whole pipeline of single images over the corpus and all quality presets. throughput and
+ * sample time modes give ops/s and the latency percentiles, run with -prof gc for the allocation rate.
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+    @Param({ "640x480-rgb.jpg", "4000x3000-rgb.jpg", "1080x1920-rgb.jpg", "3000x1000-rgb.jpg",
+            "2048x2048-gray.jpg", "1200x800-argb.png", "800x600-indexed.gif" })
+    public String fixture;
+    @Param({ "LOW", "MEDIUM", "HIGH", "LANCZOS" })
+    public Image.Quality quality;
+    /**
+     * target box, the aspect of the fixture gets cropped to it
+     */
+    @Param({ "320x240" })
+    public String target;
+
+    private File source;
+    private BufferedImage decoded;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Fixtures.get(fixture);
+        decoded = ImageIO.read(source);
+        final String[] box = target.split("x");
+        width = Integer.parseInt(box[0]);
+        height = Integer.parseInt(box[1]);
+    }
+
+    /**
+     * @return fresh target size, resizing recalculates it in place
+     */
+    private Dimension size() {
+        return new Dimension(width, height);
+    }
+
+    /**
+     * resize of an already decoded image
+     * 
+     * @return
+     */
+    @Benchmark
+    public BufferedImage resize() {
+        return Image.resize(decoded, size(), quality);
+    }
+
+    /**
+     * region and subsampled decode for the target
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public BufferedImage read() throws IOException {
+        return Image.read(source, size(), quality, true);
+    }
+
+    /**
+     * decode, resize and rotate as rendered by the cache
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public BufferedImage pipeline() throws IOException {
+        return new ImagePipeline(source, true).resize(width, height, quality).rotate(90).execute();
+    }
+}
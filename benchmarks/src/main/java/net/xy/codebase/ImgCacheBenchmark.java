@@ -0,0 +1,163 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * cold misses, warm hits and contended hits on one key of an cache in an temporary directory, with and without the
+ * memory tier
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ImgCacheBenchmark {
+    @Param({ "1920x1080-rgb.jpg", "4000x3000-rgb.jpg" })
+    public String fixture;
+    @Param({ "false", "true" })
+    public boolean memory;
+
+    private File dir;
+    private File source;
+    private ImgCache cache;
+    private CacheKey warm;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        source = Fixtures.get(fixture);
+        dir = Files.createTempDirectory("imgcache-bench").toFile();
+        cache = new ImgCache(dir);
+        if (memory) {
+            cache.setMemoryCache(new MemoryCache(64 * 1024 * 1024));
+        }
+        warm = new CacheKey(source.getPath(), 320, 240, 0, Image.Quality.HIGH, "jpg", -1);
+        cache.get(warm);
+        while (cache.getCount() == 0) {
+            Thread.sleep(10); // written in background
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        delete(dir);
+    }
+
+    /**
+     * quality preset of the cold misses
+     * 
+     * @author xyan
+     * 
+     */
+    @State(Scope.Thread)
+    public static class Preset {
+        @Param({ "LOW", "MEDIUM", "HIGH", "LANCZOS" })
+        public Image.Quality quality;
+        private CacheKey key;
+
+        /**
+         * purges the previous rendering so every invocation misses
+         * 
+         * @param bench
+         */
+        @Setup(Level.Invocation)
+        public void purge(final ImgCacheBenchmark bench) {
+            key = new CacheKey(bench.source.getPath(), 640, 480, 0, quality, "jpg", -1);
+            bench.cache.invalidate(bench.source.getPath());
+        }
+    }
+
+    /**
+     * miss rendering the variant from the source
+     * 
+     * @param preset
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public int coldMiss(final Preset preset) throws IOException {
+        return cache.get(preset.key).getSize();
+    }
+
+    /**
+     * hit of an indexed variant
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public int warmHit() throws IOException {
+        return cache.get(warm).getSize();
+    }
+
+    /**
+     * hit including its data as sent to an client
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public ByteBuffer warmHitData() throws IOException {
+        return cache.get(warm).getBuffer();
+    }
+
+    /**
+     * hits of many threads on the same key
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    @Threads(8)
+    public int contendedHit() throws IOException {
+        return cache.get(warm).getSize();
+    }
+
+    /**
+     * @param file
+     */
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * startup cost of an cache from its index snapshot plus journal against the listFiles scan of older versions, four
+ * variants per source
+ * 
+ * @author xyan
+ * 
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.SingleShotTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+    /**
+     * smallest complete jpeg cachefile, start and end of image
+     */
+    private static final byte[] CONTENT = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9 };
+
+    /**
+     * cachefiles of an cache directory without index
+     * 
+     * @author xyan
+     * 
+     */
+    @State(Scope.Benchmark)
+    public static class Scanned {
+        @Param({ "10000", "100000" })
+        public int entries;
+        File dir;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = cachefiles(entries);
+        }
+
+        @TearDown
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+
+    /**
+     * cachefiles plus their persisted index
+     * 
+     * @author xyan
+     * 
+     */
+    @State(Scope.Benchmark)
+    public static class Persisted {
+        @Param({ "10000", "100000" })
+        public int entries;
+        /**
+         * of the entries only in the journal
+         */
+        @Param({ "10" })
+        public int journaledPercent;
+        File dir;
+
+        @Setup
+        public void setUp() throws IOException {
+            dir = cachefiles(entries);
+            final int journaled = (int) ((long) entries * journaledPercent / 100);
+            final Map<CacheKey, ImgCache.Entry> index = new ConcurrentHashMap<CacheKey, ImgCache.Entry>(entries);
+            for (int i = 0; i < entries - journaled; i++) {
+                index.put(key(i), entry(i));
+            }
+            final IndexJournal journal = new IndexJournal(dir);
+            journal.open();
+            journal.compact(index);
+            for (int i = entries - journaled; i < entries; i++) {
+                journal.added(key(i), entry(i));
+            }
+            journal.close();
+        }
+
+        @TearDown
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+
+    /**
+     * loading snapshot and journal alone
+     * 
+     * @param state
+     * @return loaded index
+     * @throws IOException
+     */
+    @Benchmark
+    public Map<CacheKey, ImgCache.Entry> load(final Persisted state) throws IOException {
+        final IndexJournal journal = new IndexJournal(state.dir);
+        final Map<CacheKey, ImgCache.Entry> ret = new ConcurrentHashMap<CacheKey, ImgCache.Entry>(
+                journal.getCapacity());
+        journal.load(ret, false);
+        return ret;
+    }
+
+    /**
+     * opening an cache with an persisted index
+     * 
+     * @param state
+     * @return
+     */
+    @Benchmark
+    public int openPersisted(final Persisted state) {
+        return open(state.dir);
+    }
+
+    /**
+     * opening an cache without index, it scans the directory like before the journal
+     * 
+     * @param state
+     * @return
+     */
+    @Benchmark
+    public int openScanned(final Scanned state) {
+        return open(state.dir);
+    }
+
+    /**
+     * opens an readonly cache, which never writes an index or touches the files
+     * 
+     * @param dir
+     * @return indexed files
+     */
+    private static int open(final File dir) {
+        final ImgCache cache = new ImgCache(dir, true);
+        try {
+            return cache.getCount();
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * writes an sharded cache directory
+     * 
+     * @param entries
+     * @return
+     * @throws IOException
+     */
+    private static File cachefiles(final int entries) throws IOException {
+        final File dir = Files.createTempDirectory("index-bench").toFile();
+        for (int i = 0; i < entries; i++) {
+            final File file = new File(dir, key(i).getPath());
+            file.getParentFile().mkdirs();
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(CONTENT);
+            } finally {
+                out.close();
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @param i
+     * @return
+     */
+    private static CacheKey key(final int i) {
+        return new CacheKey(source(i), 160 << i % 4, 0, 0, Image.Quality.HIGH, "jpg", -1);
+    }
+
+    /**
+     * @param i
+     * @return
+     */
+    private static ImgCache.Entry entry(final int i) {
+        return new ImgCache.Entry(null, CONTENT.length, 1500000000000L + i, i * 0x9e3779b97f4a7c15L,
+                new ImgCache.Stamp(source(i), 1400000000000L + i / 4, 3000000 + i / 4));
+    }
+
+    /**
+     * @param i
+     * @return
+     */
+    private static String source(final int i) {
+        return "/srv/images/" + i / 4000 + "/" + i / 4 + ".jpg";
+    }
+
+    /**
+     * @param file
+     */
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * an cache miss rendered by the planned pipeline against the staged path before it: full decode, resize, separate
+ * turn and encode into an growing array. both produce the same variant from the file to the encoded bytes.
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({ "1920x1080-rgb.jpg", "4000x3000-rgb.jpg", "1200x800-argb.png" })
+    public String fixture;
+    @Param({ "MEDIUM", "HIGH" })
+    public Image.Quality quality;
+    @Param({ "0", "90" })
+    public int rotation;
+
+    private File source;
+    private String format;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Fixtures.get(fixture);
+        format = fixture.substring(fixture.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * decode of the needed region, resize and rotation in one pass, pooled encode
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] fused() throws IOException {
+        return new ImagePipeline(source, false).resize(320, 240, quality).rotate(rotation).encode(format);
+    }
+
+    /**
+     * every step on the complete result of the one before
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] staged() throws IOException {
+        final BufferedImage decoded = ImageIO.read(source);
+        BufferedImage result = Image.resize(decoded, new Dimension(320, 240), quality);
+        if (rotation != 0) {
+            result = Image.turn(result, rotation / 90, false);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(result, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * time against quality of the resize presets. besides the time per resize the psnr in dB against an area averaged
+ * reference of the same reduction is reported as secondary result, higher is closer. the fixtures are generated with
+ * the aspect of the targets, so no preset crops.
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class QualityBenchmark {
+    /**
+     * psnr reported for an result identical to the reference instead of infinity
+     */
+    private static final double IDENTICAL = 100;
+
+    @Param({ "4000x3000-rgb.jpg", "1920x1080-rgb.jpg" })
+    public String fixture;
+    /**
+     * reduction factor per axis
+     */
+    @Param({ "2", "5", "20" })
+    public int reduction;
+    @Param({ "LOW", "MEDIUM", "HIGH", "LANCZOS" })
+    public Image.Quality quality;
+
+    private BufferedImage decoded;
+    private BufferedImage reference;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException {
+        decoded = ImageIO.read(Fixtures.get(fixture));
+        width = decoded.getWidth() / reduction;
+        height = decoded.getHeight() / reduction;
+        // every source pixel weighted by its covered area, the ideal box reduction
+        final java.awt.Image scaled = decoded.getScaledInstance(width, height, java.awt.Image.SCALE_AREA_AVERAGING);
+        reference = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = reference.createGraphics();
+        g.drawImage(scaled, 0, 0, null);
+        g.dispose();
+    }
+
+    /**
+     * distance of the preset to the reference
+     * 
+     * @author xyan
+     * 
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Distance {
+        /**
+         * peak signal to noise ratio over the rgb channels in dB
+         */
+        public double psnr;
+        /**
+         * jmh zeroes the counters after the iteration setup, so the measurement gets published by every call
+         */
+        private double measured;
+
+        @Setup(Level.Iteration)
+        public void measure(final QualityBenchmark bench) {
+            measured = psnr(bench.reference, bench.resize());
+        }
+    }
+
+    /**
+     * resize of the decoded fixture by the preset
+     * 
+     * @param distance
+     * @return
+     */
+    @Benchmark
+    public BufferedImage resize(final Distance distance) {
+        distance.psnr = distance.measured;
+        return resize();
+    }
+
+    /**
+     * @return
+     */
+    private BufferedImage resize() {
+        return Image.resize(decoded, new Dimension(width, height), quality);
+    }
+
+    /**
+     * @param expected
+     * @param actual
+     * @return psnr in dB
+     */
+    private static double psnr(final BufferedImage expected, final BufferedImage actual) {
+        if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+            throw new IllegalStateException(Debug.values("Size differs from reference", actual.getWidth(),
+                    actual.getHeight()));
+        }
+        double sum = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                final int a = expected.getRGB(x, y);
+                final int b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    final int diff = (a >> shift & 0xff) - (b >> shift & 0xff);
+                    sum += diff * diff;
+                }
+            }
+        }
+        final double mse = sum / (3.0 * expected.getWidth() * expected.getHeight());
+        return mse == 0 ? IDENTICAL : 10 * Math.log10(255 * 255 / mse);
+    }
+}
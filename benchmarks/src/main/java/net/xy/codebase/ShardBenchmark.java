@@ -0,0 +1,163 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * filesystem latency of cachefile lookups and creations over the amount of files, in one flat directory against the
+ * two hash directory levels "ab/cd/"
+ * 
+ * @author xyan
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ShardBenchmark {
+    /**
+     * smallest complete jpeg cachefile, start and end of image
+     */
+    private static final byte[] CONTENT = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9 };
+
+    /**
+     * cachefile layouts
+     * 
+     * @author xyan
+     * 
+     */
+    public enum Layout {
+        /**
+         * all files in the cache root like before sharding
+         */
+        FLAT,
+        /**
+         * by the leading hash digits
+         */
+        SHARDED
+    }
+
+    @Param({ "1000", "10000", "100000" })
+    public int entries;
+    @Param({ "FLAT", "SHARDED" })
+    public Layout layout;
+
+    private File dir;
+    private String[] existing;
+    private int next = 0;
+    private int created = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("shard-bench").toFile();
+        existing = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            existing[i] = path(i);
+            final File file = new File(dir, existing[i]);
+            file.getParentFile().mkdirs();
+            write(file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(dir);
+    }
+
+    /**
+     * resolves an indexed cachefile like an disk hit does
+     * 
+     * @return
+     */
+    @Benchmark
+    public boolean lookup() {
+        // stride through the files so the directory entries aren't all hot
+        next = (next + 7919) % entries;
+        return new File(dir, existing[next]).isFile();
+    }
+
+    /**
+     * writes an new cachefile like the background writer, temp file moved into place, then deletes it again so the
+     * directory size stays fixed
+     * 
+     * @throws IOException
+     */
+    @Benchmark
+    public void createAndDelete() throws IOException {
+        final File file = new File(dir, path(entries + created++));
+        final File shard = file.getParentFile();
+        if (!shard.isDirectory()) {
+            shard.mkdirs();
+        }
+        final File temp = new File(shard, file.getName() + ".tmp");
+        write(temp);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        file.delete();
+    }
+
+    /**
+     * @param i
+     * @return cachefile below the root in the benchmarked layout
+     */
+    private String path(final int i) {
+        final CacheKey key = new CacheKey("/srv/images/" + i + ".jpg", 320, 0, 0, Image.Quality.HIGH, "jpg", -1);
+        return layout == Layout.SHARDED ? key.getPath() : key.getFileName();
+    }
+
+    /**
+     * @param file
+     * @throws IOException
+     */
+    private static void write(final File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(CONTENT);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param file
+     */
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
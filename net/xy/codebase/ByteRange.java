@@ -0,0 +1,114 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+/**
+ * single byte range as requested by an http range header, multiple ranges aren't supported and served whole
+ * 
+ * @author xyan
+ * 
+ */
+public class ByteRange {
+    private static final String UNIT = "bytes=";
+
+    /**
+     * first byte
+     */
+    public final long offset;
+    /**
+     * amount of bytes, 0 if the range isn't satisfiable
+     */
+    public final long length;
+    /**
+     * size of the whole resource
+     */
+    public final long total;
+
+    /**
+     * default constructor
+     * 
+     * @param offset
+     * @param length
+     * @param total
+     */
+    public ByteRange(final long offset, final long length, final long total) {
+        this.offset = offset;
+        this.length = length;
+        this.total = total;
+    }
+
+    /**
+     * parses an range header like "bytes=0-499", "bytes=500-" or "bytes=-500"
+     * 
+     * @param header
+     * @param total
+     * @return null if the whole resource should be served
+     */
+    public static ByteRange parse(final String header, final long total) {
+        if (header == null || !header.startsWith(UNIT) || header.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = header.substring(UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.length() == 0) { // suffix range
+                if (last.length() == 0) {
+                    return null;
+                }
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0 || total == 0) {
+                    return new ByteRange(0, 0, total);
+                }
+                final long length = Math.min(suffix, total);
+                return new ByteRange(total - length, length, total);
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.length() == 0 ? total - 1 : Math.min(Long.parseLong(last), total - 1);
+            if (start >= total) {
+                return new ByteRange(0, 0, total);
+            }
+            if (end < start) {
+                return null; // syntactically invalid, ignore
+            }
+            return new ByteRange(start, end - start + 1, total);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * checks if is the range satisfiable, otherwise answer with 416
+     * 
+     * @return
+     */
+    public boolean isSatisfiable() {
+        return length > 0;
+    }
+
+    /**
+     * gets the value of an content-range response header
+     * 
+     * @return
+     */
+    public String getContentRange() {
+        if (!isSatisfiable()) {
+            return "bytes */" + total;
+        }
+        return "bytes " + offset + "-" + (offset + length - 1) + "/" + total;
+    }
+}
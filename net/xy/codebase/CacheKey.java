@@ -0,0 +1,316 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * identifies one rendered variant of an source image, all params are folded into an 64bit hash which is also the
+ * name of the cachefile. keys are compared by this hash only so keys restored from disk match fresh ones.
+ * 
+ * @author xyan
+ * 
+ */
+public final class CacheKey {
+    /**
+     * fnv-1a 64bit offset basis and prime
+     */
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * length of the hex encoded hash in filenames
+     */
+    private static final int HEX_LENGTH = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /**
+     * directory levels below the cache root and hex digits per level
+     */
+    private static final int SHARD_LEVELS = 2;
+    private static final int SHARD_WIDTH = 2;
+
+    /**
+     * source image identifier, null for keys restored from disk
+     */
+    public final String source;
+    /**
+     * target dimensions, 0 for keeping aspect
+     */
+    public final int width;
+    public final int height;
+    /**
+     * rotation in degrees normalized to 0-359
+     */
+    public final int rotation;
+    /**
+     * rendering quality, null for keys restored from disk
+     */
+    public final Image.Quality quality;
+    /**
+     * output format as image suffix
+     */
+    public final String format;
+    /**
+     * encoder compression quality 0-100, -1 for the encoders default
+     */
+    public final int encoderQuality;
+    /**
+     * mark blended into the variant, null for none or keys restored from disk
+     */
+    public final Watermark watermark;
+    /**
+     * turned upright by the exif orientation of the source
+     */
+    public final boolean upright;
+    /**
+     * precomputed variant hash
+     */
+    private final long hash;
+
+    /**
+     * main constructor
+     * 
+     * @param source
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     * @param format
+     * @param encoderQuality
+     */
+    public CacheKey(final String source, final int width, final int height, final int rotation,
+            final Image.Quality quality, final String format, final int encoderQuality) {
+        this(source, width, height, rotation, quality, format, encoderQuality, null, false);
+    }
+
+    /**
+     * constructor for all params
+     * 
+     * @param source
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     * @param format
+     * @param encoderQuality
+     * @param watermark
+     *            null for none
+     * @param upright
+     *            turns the source upright by its exif orientation before rendering
+     */
+    public CacheKey(final String source, final int width, final int height, final int rotation,
+            final Image.Quality quality, final String format, final int encoderQuality, final Watermark watermark,
+            final boolean upright) {
+        if (source == null || quality == null || format == null) {
+            throw new IllegalArgumentException(Debug.values("Incomplete cache key", source, quality, format));
+        }
+        this.source = source;
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        this.rotation = (rotation % 360 + 360) % 360;
+        this.quality = quality;
+        this.format = format.toLowerCase(Locale.ENGLISH);
+        this.encoderQuality = encoderQuality < 0 ? -1 : Math.min(encoderQuality, 100);
+        this.watermark = watermark;
+        this.upright = upright;
+        long h = FNV_BASIS;
+        h = mix(h, source);
+        h = mix(h, this.width);
+        h = mix(h, this.height);
+        h = mix(h, this.rotation);
+        h = mix(h, quality.ordinal());
+        h = mix(h, this.format);
+        h = mix(h, this.encoderQuality);
+        // variants without mark or orientation keep their hash and so their cachefiles
+        if (upright) {
+            h = mix(h, Integer.MIN_VALUE);
+        }
+        if (watermark != null) {
+            h = mix(h, (int) watermark.getIdentity());
+            h = mix(h, (int) (watermark.getIdentity() >>> 32));
+        }
+        hash = finish(h);
+    }
+
+    /**
+     * restores an key from its cachefile
+     * 
+     * @param hash
+     * @param format
+     */
+    private CacheKey(final long hash, final String format) {
+        source = null;
+        width = 0;
+        height = 0;
+        rotation = 0;
+        quality = null;
+        this.format = format;
+        encoderQuality = -1;
+        watermark = null;
+        upright = false;
+        this.hash = hash;
+    }
+
+    /**
+     * parses an cachefile name, returns null if it isn't one
+     * 
+     * @param fileName
+     * @return
+     */
+    public static CacheKey parse(final String fileName) {
+        if (fileName.length() < HEX_LENGTH + 2 || fileName.charAt(HEX_LENGTH) != '.'
+                || fileName.indexOf('.', HEX_LENGTH + 1) >= 0) {
+            return null;
+        }
+        long hash = 0;
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            final int digit = Character.digit(fileName.charAt(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            hash = hash << 4 | digit;
+        }
+        return new CacheKey(hash, fileName.substring(HEX_LENGTH + 1));
+    }
+
+    /**
+     * restores an key from its stored hash and format
+     * 
+     * @param hash
+     * @param format
+     * @return
+     */
+    static CacheKey restore(final long hash, final String format) {
+        return new CacheKey(hash, format);
+    }
+
+    /**
+     * gets this variant with an mark
+     * 
+     * @param watermark
+     *            null for none
+     * @return
+     */
+    public CacheKey mark(final Watermark watermark) {
+        return new CacheKey(source, width, height, rotation, quality, format, encoderQuality, watermark, upright);
+    }
+
+    /**
+     * gets this variant with or without exif orientation applied
+     * 
+     * @param upright
+     * @return
+     */
+    public CacheKey upright(final boolean upright) {
+        return new CacheKey(source, width, height, rotation, quality, format, encoderQuality, watermark, upright);
+    }
+
+    /**
+     * gets the variant hash
+     * 
+     * @return
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * gets the cachefile name as "[16 hex digits hash].[format]"
+     * 
+     * @return
+     */
+    public String getFileName() {
+        final char[] name = new char[HEX_LENGTH + 1 + format.length()];
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            name[i] = HEX[(int) (hash >>> (HEX_LENGTH - 1 - i) * 4) & 0xf];
+        }
+        name[HEX_LENGTH] = '.';
+        format.getChars(0, format.length(), name, HEX_LENGTH + 1);
+        return new String(name);
+    }
+
+    /**
+     * gets the cachefile path below the cache root as "[2 hex digits]/[2 hex digits]/[file name]" by the leading
+     * hash digits, which spreads the variants evenly over 65536 directories
+     * 
+     * @return
+     */
+    public String getPath() {
+        final String name = getFileName();
+        final StringBuilder ret = new StringBuilder(name.length() + SHARD_LEVELS * (SHARD_WIDTH + 1));
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            ret.append(name, i * SHARD_WIDTH, (i + 1) * SHARD_WIDTH).append(File.separatorChar);
+        }
+        return ret.append(name).toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof CacheKey && ((CacheKey) obj).hash == hash;
+    }
+
+    @Override
+    public String toString() {
+        return Debug.fields(source, width, height, rotation, quality, format, encoderQuality, watermark, upright);
+    }
+
+    /**
+     * folds an string into the hash, length is included to separate fields
+     * 
+     * @param hash
+     * @param value
+     * @return
+     */
+    private static long mix(long hash, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ c >>> 8) * FNV_PRIME;
+        }
+        return mix(hash, value.length());
+    }
+
+    /**
+     * folds an int into the hash
+     * 
+     * @param hash
+     * @param value
+     * @return
+     */
+    private static long mix(long hash, final int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ (value >>> shift & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * final avalanche so all bits of the filename are well distributed
+     * 
+     * @param hash
+     * @return
+     */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
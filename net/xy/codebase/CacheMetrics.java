@@ -0,0 +1,118 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+/**
+ * instrumentation spi of the cache and its render path. implementations must be thread safe and cheap, they are
+ * called on every request. timings are taken as start() and record(stage, start) so the disabled default doesn't
+ * even read the clock.
+ * 
+ * @author xyan
+ * 
+ */
+public interface CacheMetrics {
+    /**
+     * timed stages
+     * 
+     * @author xyan
+     * 
+     */
+    public enum Stage {
+        /**
+         * memory tier and index lookup
+         */
+        LOOKUP,
+        /**
+         * reading and decoding the source
+         */
+        DECODE,
+        /**
+         * resizing, rotating and watermarking
+         */
+        RESIZE,
+        /**
+         * encoding into the target format
+         */
+        ENCODE,
+        /**
+         * writing the cachefile
+         */
+        WRITE;
+    }
+
+    /**
+     * counted events
+     * 
+     * @author xyan
+     * 
+     */
+    public enum Event {
+        MEMORY_HIT, DISK_HIT, MISS,
+        /**
+         * miss waiting for the rendering of another one
+         */
+        SHARED_MISS,
+        /**
+         * asynchronous miss rejected by the saturated render pool
+         */
+        REJECTED, WRITE_FAILURE,
+        /**
+         * change event the watcher failed to handle
+         */
+        WATCH_FAILURE,
+        /**
+         * hit dropped because its source changed, followed by an miss
+         */
+        STALE;
+    }
+
+    /**
+     * disabled default
+     */
+    public static final CacheMetrics NOOP = new CacheMetrics() {
+        @Override
+        public long start() {
+            return 0;
+        }
+
+        @Override
+        public void record(final Stage stage, final long start) {
+        }
+
+        @Override
+        public void count(final Event event) {
+        }
+    };
+
+    /**
+     * gets the start time of an stage
+     * 
+     * @return
+     */
+    public long start();
+
+    /**
+     * records the time since start
+     * 
+     * @param stage
+     * @param start
+     */
+    public void record(Stage stage, long start);
+
+    /**
+     * counts an event
+     * 
+     * @param event
+     */
+    public void count(Event event);
+}
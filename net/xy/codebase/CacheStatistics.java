@@ -0,0 +1,151 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * default metrics with lock free counters and latency histograms per stage
+ * 
+ * @author xyan
+ * 
+ */
+public class CacheStatistics implements CacheMetrics, CacheStatisticsMXBean {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final LongAdder[] events = new LongAdder[Event.values().length];
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * default
+     */
+    public CacheStatistics() {
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new LongAdder();
+        }
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void record(final Stage stage, final long start) {
+        stages[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void count(final Event event) {
+        events[event.ordinal()].increment();
+    }
+
+    /**
+     * gets an event counter
+     * 
+     * @param event
+     * @return
+     */
+    public long getCount(final Event event) {
+        return events[event.ordinal()].sum();
+    }
+
+    /**
+     * gets the latencies of an stage
+     * 
+     * @param stage
+     * @return
+     */
+    public LatencyHistogram.Snapshot getSnapshot(final Stage stage) {
+        return stages[stage.ordinal()].snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        for (final Event event : Event.values()) {
+            ret.put(name(event), getCount(event));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        final Map<String, Double> ret = new LinkedHashMap<String, Double>();
+        for (final Stage stage : Stage.values()) {
+            final LatencyHistogram.Snapshot snapshot = getSnapshot(stage);
+            final String name = name(stage);
+            ret.put(name + ".count", (double) snapshot.count);
+            ret.put(name + ".mean", snapshot.getMean() / NANOS_PER_MILLI);
+            ret.put(name + ".p50", snapshot.getPercentile(0.5) / NANOS_PER_MILLI);
+            ret.put(name + ".p99", snapshot.getPercentile(0.99) / NANOS_PER_MILLI);
+            ret.put(name + ".max", snapshot.max / NANOS_PER_MILLI);
+        }
+        return ret;
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hits = getCount(Event.MEMORY_HIT) + getCount(Event.DISK_HIT);
+        final long lookups = hits + getCount(Event.MISS);
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    @Override
+    public void reset() {
+        for (final LongAdder event : events) {
+            event.reset();
+        }
+        for (final LatencyHistogram stage : stages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * registers at the platform mbean server as "net.xy.codebase:type=ImgCache,name=[name]"
+     * 
+     * @param name
+     * @return
+     * @throws JMException
+     */
+    public ObjectName register(final String name) throws JMException {
+        final ObjectName ret = new ObjectName("net.xy.codebase:type=ImgCache,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, ret);
+        return ret;
+    }
+
+    /**
+     * gets an lowercase display name
+     * 
+     * @param value
+     * @return
+     */
+    private static String name(final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return Debug.values("Cache statistics", getCounters(), getLatencies());
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * byte and entry quota for an cache basedir, enforced in background by evicting the least recently accessed files.
+ * also switches the cache to readonly behaviour while the free space of its volume is below an low watermark.
+ * 
+ * @author xyan
+ * 
+ */
+public class DiskQuota {
+    /**
+     * default interval between checks in millis
+     */
+    public static final long DEFAULT_PERIOD = 60 * 1000;
+    /**
+     * eviction frees down to this percentage of the quota to not run on every write
+     */
+    private static final int TARGET_SHARE = 90;
+
+    /**
+     * evictable file with its access time frozen for sorting
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Candidate {
+        public final CacheKey key;
+        public final ImgCache.Entry entry;
+        public final long lastAccess;
+
+        public Candidate(final CacheKey key, final ImgCache.Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            lastAccess = entry.lastAccess;
+        }
+    }
+
+    /**
+     * least recently accessed first
+     */
+    private static final Comparator<Candidate> BY_ACCESS = new Comparator<Candidate>() {
+        @Override
+        public int compare(final Candidate o1, final Candidate o2) {
+            return o1.lastAccess < o2.lastAccess ? -1 : o1.lastAccess == o2.lastAccess ? 0 : 1;
+        }
+    };
+
+    /**
+     * maximum summed filesize, 0 for unlimited
+     */
+    public final long maxBytes;
+    /**
+     * maximum amount of files, 0 for unlimited
+     */
+    public final int maxEntries;
+    /**
+     * minimum free space on the volume before writing stops, 0 disables
+     */
+    public final long lowWatermark;
+    /**
+     * interval between checks in millis
+     */
+    public final long period;
+    /**
+     * set while an early run is queued
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * delegate constructor using the default period
+     * 
+     * @param maxBytes
+     * @param maxEntries
+     * @param lowWatermark
+     */
+    public DiskQuota(final long maxBytes, final int maxEntries, final long lowWatermark) {
+        this(maxBytes, maxEntries, lowWatermark, DEFAULT_PERIOD);
+    }
+
+    /**
+     * main constructor
+     * 
+     * @param maxBytes
+     * @param maxEntries
+     * @param lowWatermark
+     * @param period
+     */
+    public DiskQuota(final long maxBytes, final int maxEntries, final long lowWatermark, final long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException(Debug.values("Period must be positive", period));
+        }
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntries = Math.max(0, maxEntries);
+        this.lowWatermark = Math.max(0, lowWatermark);
+        this.period = period;
+    }
+
+    /**
+     * checks if is the quota exceeded by the cache
+     * 
+     * @param cache
+     * @return
+     */
+    public boolean isExceeded(final ImgCache cache) {
+        return maxBytes > 0 && cache.getTotalBytes() > maxBytes || maxEntries > 0 && cache.getCount() > maxEntries;
+    }
+
+    /**
+     * marks an early run as queued
+     * 
+     * @return false if one is already queued
+     */
+    boolean schedule() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * checks free space and evicts until the cache is below its quota, runs on the maintenance thread only. does
+     * nothing for an cache configured readonly, but keeps checking one readonly because of low space.
+     * 
+     * @param cache
+     */
+    void enforce(final ImgCache cache) {
+        scheduled.set(false);
+        if (cache.readOnly) {
+            return; // nothing is written, the writing instance enforces its own quota
+        }
+        if (lowWatermark > 0) {
+            final long free = cache.basedir.getUsableSpace();
+            if (free < lowWatermark) {
+                cache.setLowSpace(true);
+            } else if (free >= lowWatermark + lowWatermark / 4) { // hysteresis against flapping
+                cache.setLowSpace(false);
+            }
+        }
+        if (!isExceeded(cache)) {
+            return;
+        }
+        final long bytes = maxBytes > 0 ? maxBytes / 100 * TARGET_SHARE : Long.MAX_VALUE;
+        final long count = maxEntries > 0 ? (long) maxEntries * TARGET_SHARE / 100 : Long.MAX_VALUE;
+        final Candidate[] candidates = new Candidate[cache.getCount()];
+        int size = 0;
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : cache.entries()) {
+            if (size == candidates.length) {
+                break; // grown meanwhile, the rest gets checked next run
+            }
+            candidates[size++] = new Candidate(entry.getKey(), entry.getValue());
+        }
+        Arrays.sort(candidates, 0, size, BY_ACCESS);
+        for (int i = 0; i < size && (cache.getTotalBytes() > bytes || cache.getCount() > count); i++) {
+            if (cache.evict(candidates[i].key, candidates[i].entry)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * gets the amount of evicted files
+     * 
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * seekable in memory output for image writers, pooled per thread so encoding only allocates the final right sized
+ * array. buffers grown beyond MAX_RETAINED are dropped after use. the writers are pooled per thread and format as
+ * well, they get reset instead of disposed.
+ * 
+ * @author xyan
+ * 
+ */
+class EncodeBuffer extends ImageOutputStreamImpl {
+    /**
+     * initial and maximum pooled capacity
+     */
+    private static final int INITIAL = 64 * 1024;
+    private static final int MAX_RETAINED = 4 * 1024 * 1024;
+    /**
+     * one buffer per thread
+     */
+    private static final ThreadLocal<EncodeBuffer> POOL = new ThreadLocal<EncodeBuffer>() {
+        @Override
+        protected EncodeBuffer initialValue() {
+            return new EncodeBuffer();
+        }
+    };
+
+    /**
+     * writer providers by suffix, looked up once. an unavailable format maps to NONE.
+     */
+    private static final ConcurrentHashMap<String, Object> PROVIDERS = new ConcurrentHashMap<String, Object>();
+    private static final Object NONE = new Object();
+    /**
+     * idle writers of the current thread by suffix
+     */
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = new ThreadLocal<Map<String, ImageWriter>>() {
+        @Override
+        protected Map<String, ImageWriter> initialValue() {
+            return new HashMap<String, ImageWriter>();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL];
+    private int length = 0;
+    private boolean used = false;
+
+    /**
+     * gets the empty buffer of the current thread, must be released after use
+     * 
+     * @return
+     */
+    public static EncodeBuffer acquire() {
+        final EncodeBuffer result = POOL.get();
+        if (result.used) {
+            return new EncodeBuffer(); // nested use
+        }
+        result.used = true;
+        return result;
+    }
+
+    /**
+     * encodes an image by an pooled writer through the pooled buffer. an writer which failed gets disposed, it's
+     * state is unknown.
+     * 
+     * @param image
+     * @param format
+     *            image suffix
+     * @param quality
+     *            0-100, -1 for the encoders default
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encode(final RenderedImage image, final String format, final int quality)
+            throws IOException {
+        final Map<String, ImageWriter> idle = WRITERS.get();
+        ImageWriter writer = idle.remove(format); // taken, nested use gets an own one
+        if (writer == null) {
+            writer = getProvider(format).createWriterInstance();
+        }
+        final EncodeBuffer buffer = acquire();
+        boolean reusable = false;
+        try {
+            writer.setOutput(buffer);
+            writer.write(null, new IIOImage(image, null, null), getParam(writer, quality));
+            reusable = true;
+            return buffer.toByteArray();
+        } finally {
+            buffer.release();
+            if (reusable) {
+                writer.reset();
+                final ImageWriter surplus = idle.put(format, writer);
+                if (surplus != null) {
+                    surplus.dispose();
+                }
+            } else {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * gets an write param with explicit compression quality if the writer supports it
+     * 
+     * @param writer
+     * @param quality
+     *            0-100, -1 for the encoders default
+     * @return null for the default
+     */
+    private static ImageWriteParam getParam(final ImageWriter writer, final int quality) {
+        if (quality < 0) {
+            return null;
+        }
+        final ImageWriteParam ret = writer.getDefaultWriteParam();
+        if (!ret.canWriteCompressed()) {
+            return null;
+        }
+        ret.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        final String[] types = ret.getCompressionTypes();
+        if (ret.getCompressionType() == null && types != null && types.length > 0) {
+            ret.setCompressionType(types[0]);
+        }
+        ret.setCompressionQuality(Math.min(quality, 100) / 100f);
+        return ret;
+    }
+
+    /**
+     * checks if an format can be encoded
+     * 
+     * @param format
+     *            image suffix
+     * @return
+     */
+    public static boolean isWritable(final String format) {
+        return lookup(format) != NONE;
+    }
+
+    /**
+     * gets the writer provider of an format
+     * 
+     * @param format
+     *            image suffix
+     * @return
+     */
+    public static ImageWriterSpi getProvider(final String format) {
+        final Object ret = lookup(format);
+        if (ret == NONE) {
+            throw new IllegalStateException(Debug.values("No imagewriter available for suffix", format));
+        }
+        return (ImageWriterSpi) ret;
+    }
+
+    /**
+     * looks an provider up once, plugins registered later are not seen for formats looked up before
+     * 
+     * @param format
+     * @return the provider or NONE
+     */
+    private static Object lookup(final String format) {
+        Object ret = PROVIDERS.get(format);
+        if (ret == null) {
+            final Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+            ret = NONE;
+            if (writers.hasNext()) {
+                final ImageWriter writer = writers.next();
+                if (writer.getOriginatingProvider() != null) {
+                    ret = writer.getOriginatingProvider();
+                }
+                writer.dispose();
+            }
+            PROVIDERS.put(format, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * resets the buffer for the next use
+     */
+    public void release() {
+        if (buffer.length > MAX_RETAINED) {
+            buffer = new byte[INITIAL];
+        }
+        length = 0;
+        streamPos = 0;
+        flushedPos = 0;
+        bitOffset = 0;
+        used = false;
+    }
+
+    /**
+     * copies the written bytes
+     * 
+     * @return
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        final int count = (int) Math.min(len, length - streamPos);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        flushBits();
+        ensure(streamPos + 1);
+        buffer[(int) streamPos++] = (byte) b;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        flushBits();
+        ensure(streamPos + len);
+        System.arraycopy(b, off, buffer, (int) streamPos, len);
+        streamPos += len;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * grows the buffer by doubling
+     * 
+     * @param capacity
+     */
+    private void ensure(final long capacity) {
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException(Debug.values("Encoded image too large", capacity));
+        }
+        if (capacity > buffer.length) {
+            final long grown = Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8);
+            buffer = Arrays.copyOf(buffer, (int) Math.max(capacity, grown));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * chooses the output format of an variant by the accept header of an client. smaller formats are preferred in the
+ * given order if the client names them explicitly and an writer plugin for them is installed, otherwise the format of
+ * the source is kept. responses of negotiated variants must carry "Vary: Accept".
+ * 
+ * @author xyan
+ * 
+ */
+public class FormatNegotiator {
+    /**
+     * avif before webp, both only if an imageio plugin provides an writer
+     */
+    public static final FormatNegotiator DEFAULT = new FormatNegotiator("avif", "webp");
+    /**
+     * content types by suffix
+     */
+    private static final ConcurrentHashMap<String, String[]> MIME_TYPES = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * suffixes in order of preference
+     */
+    private final String[] preferred;
+
+    /**
+     * default constructor
+     * 
+     * @param preferred
+     *            suffixes in order of preference
+     */
+    public FormatNegotiator(final String... preferred) {
+        this.preferred = new String[preferred.length];
+        for (int i = 0; i < preferred.length; i++) {
+            this.preferred[i] = preferred[i].toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * chooses the format to send
+     * 
+     * @param accept
+     *            header value, null if absent
+     * @param format
+     *            suffix of the source
+     * @return an preferred suffix or format
+     */
+    public String negotiate(final String accept, final String format) {
+        if (accept == null) {
+            return format;
+        }
+        final String[] ranges = accept.toLowerCase(Locale.ENGLISH).split(",");
+        final float base = quality(ranges, format, true);
+        for (final String candidate : preferred) {
+            if (candidate.equals(format) || !EncodeBuffer.isWritable(candidate)) {
+                continue;
+            }
+            // only explicitly named ones, wildcards don't tell about support of newer formats
+            final float q = quality(ranges, candidate, false);
+            if (q > 0 && q >= base) {
+                return candidate;
+            }
+        }
+        return format;
+    }
+
+    /**
+     * gets the accepted quality of an format by its most specific range
+     * 
+     * @param ranges
+     *            lowercase media ranges with parameters
+     * @param format
+     * @param wildcards
+     *            also match image/* and *&#47;*
+     * @return 0 if not acceptable
+     */
+    private static float quality(final String[] ranges, final String format, final boolean wildcards) {
+        final String[] types = getMimeTypes(format);
+        float exact = -1;
+        float image = -1;
+        float any = -1;
+        for (final String range : ranges) {
+            final String[] params = range.split(";");
+            final String type = params[0].trim();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (final NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("image/*".equals(type)) {
+                image = Math.max(image, q);
+            } else if ("*/*".equals(type)) {
+                any = Math.max(any, q);
+            } else {
+                for (final String mime : types) {
+                    if (mime.equals(type)) {
+                        exact = Math.max(exact, q);
+                    }
+                }
+            }
+        }
+        if (exact >= 0) {
+            return exact;
+        } else if (!wildcards) {
+            return 0;
+        }
+        return image >= 0 ? image : Math.max(any, 0);
+    }
+
+    /**
+     * gets the content type of an format
+     * 
+     * @param format
+     *            suffix
+     * @return
+     */
+    public static String getMimeType(final String format) {
+        return getMimeTypes(format)[0];
+    }
+
+    /**
+     * gets the content types of an format as announced by its writer, lowercase
+     * 
+     * @param format
+     * @return at least one
+     */
+    private static String[] getMimeTypes(final String format) {
+        String[] ret = MIME_TYPES.get(format);
+        if (ret == null) {
+            final String[] types = EncodeBuffer.isWritable(format) ? EncodeBuffer.getProvider(format).getMIMETypes()
+                    : null;
+            if (types != null && types.length > 0) {
+                ret = new String[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    ret[i] = types[i].toLowerCase(Locale.ENGLISH);
+                }
+            } else {
+                ret = new String[] { "jpg".equals(format) ? "image/jpeg" : "image/" + format };
+            }
+            MIME_TYPES.put(format, ret);
+        }
+        return ret;
+    }
+}
@@ -12,16 +12,36 @@
  */
 package net.xy.codebase;
 
+import java.awt.AlphaComposite;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.NodeList;
+
 /**
  * class for manipulating images mainly as servlet proccesor used
  * 
@@ -50,21 +70,29 @@ public class Image {
      * 
      */
     public enum Quality {
-        LOW(0, RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED, RenderingHints.VALUE_ANTIALIAS_OFF,
+        LOW(null, 0, RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED, RenderingHints.VALUE_ANTIALIAS_OFF,
                 RenderingHints.VALUE_COLOR_RENDER_SPEED, RenderingHints.VALUE_DITHER_DISABLE,
                 RenderingHints.VALUE_FRACTIONALMETRICS_OFF, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR,
                 RenderingHints.VALUE_RENDER_SPEED, RenderingHints.VALUE_STROKE_DEFAULT,
                 RenderingHints.VALUE_TEXT_ANTIALIAS_OFF), //
-        MEDIUM(2, RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED, RenderingHints.VALUE_ANTIALIAS_ON,
+        MEDIUM(null, 2, RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED, RenderingHints.VALUE_ANTIALIAS_ON,
                 RenderingHints.VALUE_COLOR_RENDER_SPEED, RenderingHints.VALUE_DITHER_ENABLE,
                 RenderingHints.VALUE_FRACTIONALMETRICS_OFF, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
                 RenderingHints.VALUE_RENDER_SPEED, RenderingHints.VALUE_STROKE_DEFAULT,
                 RenderingHints.VALUE_TEXT_ANTIALIAS_OFF), //
-        HIGH(-1, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY, RenderingHints.VALUE_ANTIALIAS_ON,
+        HIGH(null, -1, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY, RenderingHints.VALUE_ANTIALIAS_ON,
                 RenderingHints.VALUE_COLOR_RENDER_QUALITY, RenderingHints.VALUE_DITHER_ENABLE,
                 RenderingHints.VALUE_FRACTIONALMETRICS_ON, RenderingHints.VALUE_INTERPOLATION_BICUBIC,
                 RenderingHints.VALUE_RENDER_QUALITY, RenderingHints.VALUE_STROKE_NORMALIZE,
-                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON), //
+        /**
+         * resampled with lanczos by the pure java engine instead of java2d
+         */
+        LANCZOS(Resampler.Filter.LANCZOS, 0, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY,
+                RenderingHints.VALUE_ANTIALIAS_ON, RenderingHints.VALUE_COLOR_RENDER_QUALITY,
+                RenderingHints.VALUE_DITHER_ENABLE, RenderingHints.VALUE_FRACTIONALMETRICS_ON,
+                RenderingHints.VALUE_INTERPOLATION_BICUBIC, RenderingHints.VALUE_RENDER_QUALITY,
+                RenderingHints.VALUE_STROKE_NORMALIZE, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
 
         /**
          * rendering hints
@@ -76,13 +104,19 @@ public class Image {
          */
         public final int stepping;
 
-        private Quality(final int stepping, final Object... hints) {
+        /**
+         * filter of the pure java resampler, null for resizing by java2d
+         */
+        public final Resampler.Filter filter;
+
+        private Quality(final Resampler.Filter filter, final int stepping, final Object... hints) {
             final Map<RenderingHints.Key, Object> mapping = new HashMap<RenderingHints.Key, Object>();
             for (int i = 0; i < hints.length; i++) {
                 mapping.put(Hints.KEYS[i], hints[i]);
             }
             this.hints = Collections.unmodifiableMap(mapping);
             this.stepping = stepping;
+            this.filter = filter;
         }
     }
 
@@ -96,6 +130,20 @@ public class Image {
         WIDTH, HEIGHT, NONE;
     }
 
+    /**
+     * native jpeg metadata format and its exif marker
+     */
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+    private static final String APP1 = "225";
+    private static final int EXIF_ORIENTATION = 0x0112;
+
+    /**
+     * clockwise quarter turns and mirroring after which an image with an exif orientation is upright
+     */
+    private static final int[] QUARTERS = new int[] { 0, 0, 0, 2, 2, 3, 1, 1, 3 };
+    private static final boolean[] MIRRORED = new boolean[] { false, false, true, false, true, true, false, true,
+            false };
+
     /**
      * delegate using qualities
      * 
@@ -105,11 +153,29 @@ public class Image {
      * @return
      */
     public static BufferedImage resize(final BufferedImage input, final Dimension size, final Quality quality) {
+        if (quality.filter != null) {
+            return resize(input, size, quality.filter);
+        }
         return resize(input, size, quality.hints, quality.stepping);
     }
 
     /**
-     * resizes an image to new dimensions don't alter the original
+     * resizes an image by the pure java resampler, the result is always int packed rgb or argb
+     * 
+     * @param input
+     * @param size
+     * @param filter
+     * @return
+     */
+    public static BufferedImage resize(final BufferedImage input, final Dimension size, final Resampler.Filter filter) {
+        final Rectangle region = crop(input.getWidth(), input.getHeight(), size);
+        return Resampler.resample(input, region, size.width, size.height, filter);
+    }
+
+    /**
+     * resizes an image to new dimensions don't alter the original. large reductions are done in halving steps, at
+     * most stepping ones and as many as useful if it's negative. intermediate steps ping pong between two scratch
+     * images drawing into their top left part.
      * 
      * @param input
      * @param size
@@ -119,32 +185,144 @@ public class Image {
      */
     public static BufferedImage resize(final BufferedImage input, final Dimension size,
             final Map<RenderingHints.Key, Object> hints, final int stepping) {
-        final int clip = calculate(input.getWidth(), input.getHeight(), size);
-        final Hashtable<Object, Object> properties = new Hashtable<Object, Object>(input.getPropertyNames().length);
-        for (final String name : input.getPropertyNames()) {
-            properties.put(name, input.getProperty(name));
+        final BufferedImage source = halve(input, crop(input.getWidth(), input.getHeight(), size), size, hints,
+                stepping);
+        final String[] names = input.getPropertyNames();
+        Hashtable<Object, Object> properties = null;
+        if (names != null) {
+            properties = new Hashtable<Object, Object>(names.length);
+            for (final String name : names) {
+                properties.put(name, input.getProperty(name));
+            }
         }
         final BufferedImage ret = new BufferedImage(input.getColorModel(), input.getColorModel()
                 .createCompatibleWritableRaster(size.width, size.height), input.isAlphaPremultiplied(), properties);
-        final Graphics g = ret.getGraphics();
-        if (g instanceof Graphics2D) {
-            ((Graphics2D) g).addRenderingHints(hints);
+        draw(source, new Rectangle(0, 0, source.getWidth(), source.getHeight()), ret, size.width, size.height, hints);
+        return ret;
+    }
+
+    /**
+     * resizes and rotates clockwise, quarter turns are done losslessly on the resized image and other angles in one
+     * affine pass together with the final resize step. size is the image before rotation and gets recalculated.
+     * 
+     * @param input
+     * @param size
+     * @param degrees
+     * @param quality
+     * @return
+     */
+    public static BufferedImage resize(final BufferedImage input, final Dimension size, final double degrees,
+            final Quality quality) {
+        final double angle = (degrees % 360 + 360) % 360;
+        if (angle == 0) {
+            return resize(input, size, quality);
+        } else if (angle % 90 == 0) {
+            return turn(resize(input, size, quality), (int) angle / 90, false);
+        }
+        final Rectangle region = crop(input.getWidth(), input.getHeight(), size);
+        final BufferedImage source = halve(input, region, size, quality.hints, quality.filter != null ? -1
+                : quality.stepping);
+        final Dimension bounds = new Dimension(size);
+        rotate(bounds, angle);
+        final BufferedImage ret = new BufferedImage(bounds.width, bounds.height,
+                input.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final AffineTransform transform = new AffineTransform();
+        transform.translate(bounds.width / 2.0, bounds.height / 2.0);
+        transform.rotate(Math.toRadians(angle));
+        transform.scale((double) size.width / source.getWidth(), (double) size.height / source.getHeight());
+        transform.translate(-source.getWidth() / 2.0, -source.getHeight() / 2.0);
+        final Graphics2D g = ret.createGraphics();
+        g.addRenderingHints(quality.hints);
+        g.drawImage(source, transform, null);
+        g.dispose();
+        return ret;
+    }
+
+    /**
+     * halves an region in steps, at most stepping ones and as many as useful if it's negative. the steps ping pong
+     * between two scratch images drawing into their top left part.
+     * 
+     * @param input
+     * @param region
+     * @param size
+     * @param hints
+     * @param stepping
+     * @return the image left for the final pass, input itself if there is nothing to halve or cut, otherwise sharing
+     *         the raster of input or an scratch image
+     */
+    static BufferedImage halve(final BufferedImage input, final Rectangle region, final Dimension size,
+            final Map<RenderingHints.Key, Object> hints, final int stepping) {
+        final int steps = steps(region, size, stepping);
+        if (steps == 0 && region.x == 0 && region.y == 0 && region.width == input.getWidth()
+                && region.height == input.getHeight()) {
+            return input;
         }
-        if (clip != 0) {
-            final double part = clip / 2;
-            final int align = (int) Math.floor(part);
-            final int cut = (int) Math.ceil(part);
-            if (clip > 0) { // crop height
-                g.drawImage(input, 0, 0, size.width, size.height, 0, align, input.getWidth(), input.getHeight() - cut,
-                        null);
-            } else if (clip < 0) { // crop width
-                g.drawImage(input, 0, 0, size.width, size.height, align, 0, input.getWidth() + cut, input.getHeight(),
-                        null);
+        // subimages share the raster and keep sampling inside the used part
+        BufferedImage source = input.getSubimage(region.x, region.y, region.width, region.height);
+        if (steps == 0) {
+            return source;
+        }
+        final BufferedImage[] scratch = new BufferedImage[2];
+        // exact halving with bilinear averages 2x2 blocks, bicubic only pays off for the final pass
+        final Map<RenderingHints.Key, Object> stepHints = new HashMap<RenderingHints.Key, Object>(hints);
+        if (RenderingHints.VALUE_INTERPOLATION_BICUBIC.equals(hints.get(RenderingHints.KEY_INTERPOLATION))) {
+            stepHints.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        for (int i = 0; i < steps; i++) {
+            final int width = Math.max(size.width, source.getWidth() / 2);
+            final int height = Math.max(size.height, source.getHeight() / 2);
+            if (scratch[i % 2] == null) {
+                // first of each is the largest needed
+                scratch[i % 2] = new BufferedImage(width, height,
+                        input.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
             }
-        } else {
-            g.drawImage(input, 0, 0, size.width, size.height, 0, 0, input.getWidth(), input.getHeight(), null);
+            draw(source, new Rectangle(0, 0, source.getWidth(), source.getHeight()), scratch[i % 2], width, height,
+                    stepHints);
+            source = scratch[i % 2].getSubimage(0, 0, width, height);
         }
-        return ret;
+        return source;
+    }
+
+    /**
+     * gets the amount of halving steps before the final resize
+     * 
+     * @param region
+     * @param size
+     * @param stepping
+     * @return
+     */
+    private static int steps(final Rectangle region, final Dimension size, final int stepping) {
+        int useful = 0;
+        int width = region.width / 2;
+        int height = region.height / 2;
+        while (width >= size.width && height >= size.height) {
+            useful++;
+            width /= 2;
+            height /= 2;
+        }
+        return stepping < 0 ? useful : Math.min(stepping, useful);
+    }
+
+    /**
+     * draws an region of an image scaled into the top left of an target
+     * 
+     * @param source
+     * @param region
+     * @param target
+     * @param width
+     * @param height
+     * @param hints
+     */
+    private static void draw(final BufferedImage source, final Rectangle region, final BufferedImage target,
+            final int width, final int height, final Map<RenderingHints.Key, Object> hints) {
+        final Graphics g = target.getGraphics();
+        if (g instanceof Graphics2D) {
+            ((Graphics2D) g).addRenderingHints(hints);
+            ((Graphics2D) g).setComposite(AlphaComposite.Src); // scratch images hold stale pixels
+        }
+        g.drawImage(source, 0, 0, width, height, region.x, region.y, region.x + region.width, region.y
+                + region.height, null);
+        g.dispose();
     }
 
     /**
@@ -156,7 +334,7 @@ public class Image {
      * @return true if the immage must be clipped to retain aspect
      */
     public static int calculate(final int width, final int height, final Dimension size) {
-        final double aspect = width / height;
+        final double aspect = (double) width / height;
         if (size.width <= 0) {
             if (size.height <= 0) {
                 size.width = width;
@@ -168,7 +346,7 @@ public class Image {
             if (size.height <= 0) {
                 size.height = (int) Math.ceil(size.width / aspect);
             } else {
-                final double newAspect = size.width / size.height;
+                final double newAspect = (double) size.width / size.height;
                 if (newAspect < aspect) { // crop width return -
                     return (int) Math.ceil(height * newAspect - width);
                 } else if (newAspect > aspect) { // crop height return +
@@ -180,47 +358,392 @@ public class Image {
         return 0;
     }
 
+    /**
+     * recalculates dimension if necessary and gets the centered part of the source retaining the target aspect
+     * 
+     * @param width
+     * @param height
+     * @param size
+     * @return
+     */
+    public static Rectangle crop(final int width, final int height, final Dimension size) {
+        final int clip = calculate(width, height, size);
+        if (clip > 0) { // crop height
+            return new Rectangle(0, clip / 2, width, height - clip);
+        } else if (clip < 0) { // crop width
+            return new Rectangle(-clip / 2, 0, width + clip, height);
+        }
+        return new Rectangle(0, 0, width, height);
+    }
+
+    /**
+     * delegate without applying exif orientation
+     * 
+     * @param source
+     * @param size
+     * @param quality
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage read(final File source, final Dimension size, final Quality quality)
+            throws IOException {
+        return read(source, size, quality, false);
+    }
+
+    /**
+     * delegate decoding the whole image
+     * 
+     * @param source
+     * @param size
+     *            gets recalculated like for resize
+     * @param quality
+     * @param orient
+     *            turns the image upright by its exif orientation
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage read(final File source, final Dimension size, final Quality quality,
+            final boolean orient) throws IOException {
+        return read(source, null, size, quality, orient);
+    }
+
+    /**
+     * decodes only the pixels needed for an target size, the source gets cropped to the target aspect and
+     * subsampled while it stays at least twice as large as the target, or as large for low quality
+     * 
+     * @param source
+     * @param crop
+     *            part of the upright image to use, null for all
+     * @param size
+     *            gets recalculated like for resize
+     * @param quality
+     * @param orient
+     *            turns the image upright by its exif orientation
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage read(final File source, final Rectangle crop, final Dimension size,
+            final Quality quality, final boolean orient) throws IOException {
+        final ImageInputStream in = ImageIO.createImageInputStream(source);
+        if (in == null) {
+            throw new FileNotFoundException(Debug.values("Unable to open image", source));
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IllegalStateException(Debug.values("No imagereader available for", source));
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, !orient);
+                final int orientation = orient ? orientation(reader) : 1;
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                // orientations from 5 on swap the axes of the stored image
+                final Rectangle upright = orientation >= 5 ? new Rectangle(height, width) : new Rectangle(width,
+                        height);
+                final Rectangle bounds = crop != null ? crop.intersection(upright) : upright;
+                if (bounds.isEmpty()) {
+                    throw new IllegalArgumentException(Debug.values("Crop outside of image", source, crop, upright));
+                }
+                final Rectangle region = crop(bounds.width, bounds.height, size);
+                region.translate(bounds.x, bounds.y);
+                final int factor = subsampling(region, size, quality);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(stored(region, orientation, width, height));
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return orient(reader.read(0, param), orientation);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * decodes the whole upright image once for several target sizes, subsampled while it stays large enough for
+     * each of them like by read for a single size
+     * 
+     * @param source
+     * @param sizes
+     *            not altered
+     * @param quality
+     * @param orient
+     *            turns the image upright by its exif orientation
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage read(final File source, final Dimension[] sizes, final Quality quality,
+            final boolean orient) throws IOException {
+        final ImageInputStream in = ImageIO.createImageInputStream(source);
+        if (in == null) {
+            throw new FileNotFoundException(Debug.values("Unable to open image", source));
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IllegalStateException(Debug.values("No imagereader available for", source));
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, !orient);
+                final int orientation = orient ? orientation(reader) : 1;
+                final int width = orientation >= 5 ? reader.getHeight(0) : reader.getWidth(0);
+                final int height = orientation >= 5 ? reader.getWidth(0) : reader.getHeight(0);
+                int factor = Integer.MAX_VALUE;
+                for (final Dimension size : sizes) {
+                    final Dimension resolved = new Dimension(size);
+                    factor = Math.min(factor, subsampling(crop(width, height, resolved), resolved, quality));
+                }
+                final ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1 && factor < Integer.MAX_VALUE) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return orient(reader.read(0, param), orientation);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * gets the decoder subsampling keeping an region at least twice as large as the target, or as large for low
+     * quality
+     * 
+     * @param region
+     * @param size
+     * @param quality
+     * @return
+     */
+    private static int subsampling(final Rectangle region, final Dimension size, final Quality quality) {
+        final int headroom = quality == Quality.LOW ? 1 : 2;
+        return Math.max(1, Math.min(region.width / (size.width * headroom), region.height
+                / (size.height * headroom)));
+    }
+
+    /**
+     * maps an region of the upright image back onto the stored one by undoing the exif orientation
+     * 
+     * @param region
+     * @param orientation
+     * @param width
+     *            of the stored image
+     * @param height
+     *            of the stored image
+     * @return
+     */
+    private static Rectangle stored(final Rectangle region, final int orientation, final int width,
+            final int height) {
+        if (orientation < 2 || orientation > 8) {
+            return region;
+        }
+        // upright is the stored image mirrored first and turned then, undo the turn by turning the rest around
+        final int quarters = (4 - QUARTERS[orientation]) % 4;
+        final int uprightWidth = orientation >= 5 ? height : width;
+        final int uprightHeight = orientation >= 5 ? width : height;
+        final Rectangle ret;
+        switch (quarters) {
+        case 1:
+            ret = new Rectangle(uprightHeight - region.y - region.height, region.x, region.height, region.width);
+            break;
+        case 2:
+            ret = new Rectangle(uprightWidth - region.x - region.width, uprightHeight - region.y - region.height,
+                    region.width, region.height);
+            break;
+        case 3:
+            ret = new Rectangle(region.y, uprightWidth - region.x - region.width, region.height, region.width);
+            break;
+        default:
+            ret = new Rectangle(region);
+        }
+        if (MIRRORED[orientation]) {
+            ret.x = width - ret.x - ret.width;
+        }
+        return ret;
+    }
+
     /**
      * calculates how the image reactangle changes if the image is rotated
      * 
      * @param size
      * @param degrees
      */
-    public static void rotate(final Dimension size, double degrees) {
-        if (degrees == 0 || degrees == 180) {
+    public static void rotate(final Dimension size, final double degrees) {
+        final double angle = (degrees % 360 + 360) % 360;
+        if (angle == 0 || angle == 180) {
             return;
-        } else if (degrees == 90 || degrees == 270) {
+        } else if (angle == 90 || angle == 270) {
             final int width = size.width;
             size.width = size.height;
             size.height = width;
         } else {
-            // copied from php codebase
-            final double midh = size.height / 2; // a
-            final double midv = size.width / 2; // b
-            while (degrees > 90) {
-                degrees -= 90;
-                final int width = size.width;
-                size.width = size.height;
-                size.height = width;
+            // bounding box of the rotated rectangle, tolerance against rounding noise
+            final double sin = Math.abs(Math.sin(Math.toRadians(angle)));
+            final double cos = Math.abs(Math.cos(Math.toRadians(angle)));
+            final int width = (int) Math.ceil(size.width * cos + size.height * sin - 1e-6);
+            final int height = (int) Math.ceil(size.width * sin + size.height * cos - 1e-6);
+            size.width = width;
+            size.height = height;
+        }
+    }
+
+    /**
+     * lossless quarter turns clockwise by remapping raster indices, an horizontal mirroring is applied before
+     * 
+     * @param input
+     * @param quarters
+     * @param mirror
+     * @return
+     */
+    public static BufferedImage turn(final BufferedImage input, final int quarters, final boolean mirror) {
+        final int turns = (quarters % 4 + 4) % 4;
+        if (turns == 0 && !mirror) {
+            return input;
+        }
+        final int width = input.getWidth();
+        final int height = input.getHeight();
+        final boolean swap = turns % 2 == 1;
+        final ColorModel model = input.getColorModel();
+        final WritableRaster target = model.createCompatibleWritableRaster(swap ? height : width, swap ? width
+                : height);
+        final WritableRaster source = input.getRaster();
+        final boolean packed = source.getDataBuffer() instanceof DataBufferInt
+                && source.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && target.getDataBuffer() instanceof DataBufferInt;
+        final int[] from = packed ? ((DataBufferInt) source.getDataBuffer()).getData() : null;
+        final int[] to = packed ? ((DataBufferInt) target.getDataBuffer()).getData() : null;
+        final int scan = packed ? ((SinglePixelPackedSampleModel) source.getSampleModel()).getScanlineStride() : 0;
+        final int offset = packed ? source.getDataBuffer().getOffset() - source.getSampleModelTranslateY() * scan
+                - source.getSampleModelTranslateX() : 0;
+        final int stride = target.getWidth();
+        Object pixel = null;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int mx = mirror ? width - 1 - x : x;
+                final int tx, ty;
+                switch (turns) {
+                case 1:
+                    tx = height - 1 - y;
+                    ty = mx;
+                    break;
+                case 2:
+                    tx = width - 1 - mx;
+                    ty = height - 1 - y;
+                    break;
+                case 3:
+                    tx = y;
+                    ty = width - 1 - mx;
+                    break;
+                default:
+                    tx = mx;
+                    ty = y;
+                }
+                if (packed) {
+                    to[ty * stride + tx] = from[offset + y * scan + x];
+                } else {
+                    pixel = source.getDataElements(x, y, pixel);
+                    target.setDataElements(tx, ty, pixel);
+                }
             }
-            final double len = Math.sqrt(Math.pow(midv, 2) + Math.pow(midh, 2) - 2 * midv * midh
-                    * Math.cos(Math.toRadians(90))); // c
-            final double rad = Math.toDegrees(Math.acos(Math.pow(midv, 2) - Math.pow(midh, 2) - Math.pow(len, 2))
-                    / (-2 * midh * len));
-            size.height = (int) Math.round(len * Math.sin(Math.toRadians(90 - (rad - degrees)))
-                    / Math.sin(Math.toRadians(90)) * 2);
-            size.width = (int) Math.round(len * Math.sin(Math.toRadians(rad + degrees)) / Math.sin(Math.toRadians(90))
-                    * 2);
         }
+        return new BufferedImage(model, target, input.isAlphaPremultiplied(), null);
     }
 
     /**
-     * add an watermark with various options
+     * turns an image as stored into its upright position by its exif orientation 1-8
+     * 
+     * @param input
+     * @param orientation
+     * @return
+     */
+    public static BufferedImage orient(final BufferedImage input, final int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return input;
+        }
+        return turn(input, QUARTERS[orientation], MIRRORED[orientation]);
+    }
+
+    /**
+     * reads the exif orientation of the current image of an reader
+     * 
+     * @param reader
+     * @return 1 if unknown
+     * @throws IOException
+     */
+    private static int orientation(final ImageReader reader) throws IOException {
+        final IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !JPEG_METADATA.equals(metadata.getNativeMetadataFormatName())) {
+            return 1;
+        }
+        final NodeList markers = ((IIOMetadataNode) metadata.getAsTree(JPEG_METADATA))
+                .getElementsByTagName("unknown");
+        for (int i = 0; i < markers.getLength(); i++) {
+            final IIOMetadataNode marker = (IIOMetadataNode) markers.item(i);
+            if (APP1.equals(marker.getAttribute("MarkerTag")) && marker.getUserObject() instanceof byte[]) {
+                final int orientation = orientation((byte[]) marker.getUserObject());
+                if (orientation > 0) {
+                    return orientation;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * parses the orientation tag from ifd0 of an exif app1 segment
+     * 
+     * @param exif
+     * @return 0 if it isn't contained
+     */
+    private static int orientation(final byte[] exif) {
+        final int tiff = 6;
+        if (exif.length < tiff + 8 || exif[0] != 'E' || exif[1] != 'x' || exif[2] != 'i' || exif[3] != 'f') {
+            return 0;
+        }
+        final boolean little = exif[tiff] == 'I';
+        final int ifd = tiff + (int) unsigned(exif, tiff + 4, 4, little);
+        if (ifd < tiff || ifd + 2 > exif.length) {
+            return 0;
+        }
+        final int count = (int) unsigned(exif, ifd, 2, little);
+        for (int i = 0, entry = ifd + 2; i < count && entry + 12 <= exif.length; i++, entry += 12) {
+            if (unsigned(exif, entry, 2, little) == EXIF_ORIENTATION) {
+                final int value = (int) unsigned(exif, entry + 8, 2, little);
+                return value >= 1 && value <= 8 ? value : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * reads an unsigned tiff value
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @param little
+     * @return
+     */
+    private static long unsigned(final byte[] data, final int offset, final int length, final boolean little) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            final int b = data[offset + (little ? length - 1 - i : i)] & 0xff;
+            value = value << 8 | b;
+        }
+        return value;
+    }
+
+    /**
+     * blends an watermark into the image
      * 
      * @param image
+     * @param mark
      */
-    public static void watermark(final BufferedImage image) {
-        // TODO
+    public static void watermark(final BufferedImage image, final Watermark mark) {
+        mark.apply(image);
     }
 
     /**
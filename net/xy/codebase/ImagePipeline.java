@@ -0,0 +1,262 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * composable processing of decode, crop, resize, rotate, watermark and encode. the steps are only collected and get
+ * planned together on execution: cropping and subsampling happen while decoding, resizing and rotation are drawn
+ * in one affine pass into the result which gets the watermark blended in place. besides the halving scratch no
+ * intermediate image is allocated.
+ * 
+ * @author xyan
+ * 
+ */
+public class ImagePipeline {
+    /**
+     * either file or in memory input
+     */
+    private final File source;
+    private final BufferedImage input;
+    private final boolean orient;
+    /**
+     * collected steps
+     */
+    private Rectangle crop = null;
+    private int width = 0;
+    private int height = 0;
+    private Image.Quality quality = Image.Quality.HIGH;
+    private double rotation = 0;
+    private Watermark mark = null;
+    private CacheMetrics metrics = CacheMetrics.NOOP;
+
+    /**
+     * default
+     * 
+     * @param source
+     * @param orient
+     *            turns the image upright by its exif orientation
+     */
+    public ImagePipeline(final File source, final boolean orient) {
+        this.source = source;
+        this.orient = orient;
+        input = null;
+    }
+
+    /**
+     * for already decoded images, they are never altered
+     * 
+     * @param input
+     */
+    public ImagePipeline(final BufferedImage input) {
+        this.input = input;
+        source = null;
+        orient = false;
+    }
+
+    /**
+     * restricts to an part of the upright source
+     * 
+     * @param region
+     * @return
+     */
+    public ImagePipeline crop(final Rectangle region) {
+        crop = region == null ? null : new Rectangle(region);
+        return this;
+    }
+
+    /**
+     * resizes the image before rotation, an size of 0 gets calculated by the aspect
+     * 
+     * @param width
+     * @param height
+     * @param quality
+     * @return
+     */
+    public ImagePipeline resize(final int width, final int height, final Image.Quality quality) {
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * rotates clockwise
+     * 
+     * @param degrees
+     * @return
+     */
+    public ImagePipeline rotate(final double degrees) {
+        rotation = degrees;
+        return this;
+    }
+
+    /**
+     * blends an mark into the result
+     * 
+     * @param mark
+     *            null for none
+     * @return
+     */
+    public ImagePipeline watermark(final Watermark mark) {
+        this.mark = mark;
+        return this;
+    }
+
+    /**
+     * times the decode, resize and encode stages
+     * 
+     * @param metrics
+     *            null for none
+     * @return
+     */
+    public ImagePipeline metrics(final CacheMetrics metrics) {
+        this.metrics = metrics != null ? metrics : CacheMetrics.NOOP;
+        return this;
+    }
+
+    /**
+     * runs all steps
+     * 
+     * @return
+     * @throws IOException
+     */
+    public BufferedImage execute() throws IOException {
+        final Dimension size = new Dimension(width, height);
+        long start = metrics.start();
+        final BufferedImage decoded = decode(size);
+        metrics.record(CacheMetrics.Stage.DECODE, start);
+        start = metrics.start();
+        final BufferedImage ret = transform(decoded, size);
+        metrics.record(CacheMetrics.Stage.RESIZE, start);
+        return ret;
+    }
+
+    /**
+     * resizes, rotates and marks an decoded image
+     * 
+     * @param decoded
+     * @param size
+     *            already recalculated
+     * @return
+     */
+    private BufferedImage transform(final BufferedImage decoded, final Dimension size) {
+        final BufferedImage base;
+        final boolean fresh;
+        if (quality.filter != null) {
+            // the resampler can't rotate, it resizes in front of the pass
+            base = Image.resize(decoded, size, quality.filter);
+            fresh = true;
+        } else {
+            base = Image.halve(decoded, new Rectangle(decoded.getWidth(), decoded.getHeight()), size,
+                    quality.hints, quality.stepping);
+            fresh = base == decoded && source != null;
+        }
+        final double angle = (rotation % 360 + 360) % 360;
+        final boolean scaled = base.getWidth() != size.width || base.getHeight() != size.height;
+        if (!scaled && angle % 90 == 0 && (angle != 0 || fresh)) {
+            // nothing to interpolate, quarter turns stay lossless
+            final BufferedImage ret = Image.turn(base, (int) angle / 90, false);
+            if (mark != null) {
+                mark.apply(ret);
+            }
+            return ret;
+        }
+        final Dimension bounds = new Dimension(size);
+        Image.rotate(bounds, angle);
+        final BufferedImage ret = new BufferedImage(bounds.width, bounds.height,
+                decoded.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final AffineTransform transform = new AffineTransform();
+        transform.translate(bounds.width / 2.0, bounds.height / 2.0);
+        if (angle % 90 == 0) {
+            transform.quadrantRotate((int) angle / 90); // exact without trigonometric rounding
+        } else {
+            transform.rotate(Math.toRadians(angle));
+        }
+        transform.scale((double) size.width / base.getWidth(), (double) size.height / base.getHeight());
+        transform.translate(-base.getWidth() / 2.0, -base.getHeight() / 2.0);
+        final Graphics2D g = ret.createGraphics();
+        g.addRenderingHints(quality.hints);
+        g.drawImage(base, transform, null);
+        g.dispose();
+        if (mark != null) {
+            mark.apply(ret); // while the fresh pixels are still cached
+        }
+        return ret;
+    }
+
+    /**
+     * delegate with the encoders default quality
+     * 
+     * @param format
+     *            file suffix of the wanted format
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(final String format) throws IOException {
+        return encode(format, -1);
+    }
+
+    /**
+     * runs all steps and encodes the result
+     * 
+     * @param format
+     *            file suffix of the wanted format
+     * @param quality
+     *            encoder quality 0-100, -1 for default
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(final String format, final int quality) throws IOException {
+        if (!EncodeBuffer.isWritable(format)) {
+            throw new IllegalStateException(Debug.values("No imagewriter available for suffix", format));
+        }
+        final BufferedImage image = execute();
+        final long start = metrics.start();
+        try {
+            return EncodeBuffer.encode(image, format, quality);
+        } finally {
+            metrics.record(CacheMetrics.Stage.ENCODE, start);
+            image.flush();
+        }
+    }
+
+    /**
+     * decodes the cropped region matching the target aspect, for in memory input an view on it
+     * 
+     * @param size
+     *            gets recalculated like for resize
+     * @return
+     * @throws IOException
+     */
+    private BufferedImage decode(final Dimension size) throws IOException {
+        if (source != null) {
+            return Image.read(source, crop, size, quality, orient);
+        }
+        final Rectangle upright = new Rectangle(input.getWidth(), input.getHeight());
+        final Rectangle bounds = crop != null ? crop.intersection(upright) : upright;
+        if (bounds.isEmpty()) {
+            throw new IllegalArgumentException(Debug.values("Crop outside of image", crop, upright));
+        }
+        final Rectangle region = Image.crop(bounds.width, bounds.height, size);
+        region.translate(bounds.x, bounds.y);
+        return input.getSubimage(region.x, region.y, region.width, region.height);
+    }
+}
@@ -13,23 +13,65 @@
 package net.xy.codebase;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.URI;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-
-import net.xy.codebasel.ByteArray;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * imgcache handler with resize and rotation support
@@ -47,7 +89,27 @@ public class ImgCache {
      */
     private static final long MIN_FILESIZE = 512;
     /**
-     * root dir of cache
+     * interval of writing the index journal to disk and checking for compaction in millis
+     */
+    private static final long JOURNAL_FLUSH = 1000;
+    /**
+     * assumed decoded pixels of an variant without target size
+     */
+    private static final long UNSIZED_PIXELS = 16 * 1024 * 1024;
+    /**
+     * suffix of cachefiles being written, they get renamed into place once complete
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * writes queued for the background writer before renderers write themselves
+     */
+    private static final int MAX_WRITES = 256;
+    /**
+     * default minimum time between two checks of an variants source on hits
+     */
+    private static final long REVALIDATE = 1000;
+    /**
+     * root dir of cache, every variant is stored sharded by its hash as "[2 hex]/[2 hex]/[variant hash].[format]"
      */
     public final File basedir;
     public final URI baseuri;
@@ -56,9 +118,84 @@ public class ImgCache {
      */
     public final boolean readOnly;
     /**
-     * used to secure multithreading
+     * primary index, read lockfree by every request thread
+     */
+    private final ConcurrentHashMap<CacheKey, Entry> index;
+    /**
+     * reverse index of source paths to their indexed variants, sets are only changed while mapped
+     */
+    private final ConcurrentHashMap<String, Set<CacheKey>> variants = new ConcurrentHashMap<String, Set<CacheKey>>();
+    /**
+     * summed size of all indexed files
+     */
+    private final AtomicLong totalBytes = new AtomicLong();
+    /**
+     * renderings in progress, concurrent misses on the same variant wait for the first one
+     */
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<CachedImage>> pending =
+            new ConcurrentHashMap<CacheKey, CompletableFuture<CachedImage>>();
+    /**
+     * optional in memory tier in front of the disk
+     */
+    private volatile MemoryCache memory = null;
+    /**
+     * optional mark blended into rendered variants
+     */
+    private volatile Watermark watermark = null;
+    /**
+     * turns sources upright by their exif orientation, off by default as it changes the existing variants
+     */
+    private volatile boolean orienting = false;
+    /**
+     * chooses output formats by accept headers
+     */
+    private volatile FormatNegotiator negotiator = FormatNegotiator.DEFAULT;
+    /**
+     * instrumentation, disabled by default
+     */
+    private volatile CacheMetrics metrics = CacheMetrics.NOOP;
+    /**
+     * optional disk quota and its background worker
+     */
+    private volatile DiskQuota quota = null;
+    private ScheduledExecutorService maintenance = null;
+    private ScheduledFuture<?> quotaTask = null;
+    /**
+     * workers for asynchronous misses, an own one gets created on first use and is shut down on close
      */
-    private final HashMap<String, File> index = new HashMap<String, File>();
+    private RenderPool renders = null;
+    private boolean ownRenders = false;
+    /**
+     * rendered variants not yet on disk, served from memory meanwhile
+     */
+    private final ConcurrentHashMap<CacheKey, CachedImage> writing = new ConcurrentHashMap<CacheKey, CachedImage>();
+    private ThreadPoolExecutor writer = null;
+    /**
+     * forces written cachefiles to the device before renaming them into place
+     */
+    private volatile boolean sync = false;
+    /**
+     * set by close, variants rendered afterwards are only served and not written
+     */
+    private volatile boolean closed = false;
+    private final AtomicLong writeFailures = new AtomicLong();
+    /**
+     * set by the quota if free space dropped below its low watermark
+     */
+    private volatile boolean lowSpace = false;
+    /**
+     * minimum millis between two source checks of an variant on hits, negative disables them
+     */
+    private volatile long revalidate = REVALIDATE;
+    /**
+     * source directory watching, null if disabled
+     */
+    private volatile WatchService watcher = null;
+    private final ConcurrentHashMap<Path, Boolean> watched = new ConcurrentHashMap<Path, Boolean>();
+    /**
+     * persistent form of the index
+     */
+    private final IndexJournal journal;
 
     /**
      * delegate constructor obmitting readonly false
@@ -85,7 +222,47 @@ public class ImgCache {
         this.basedir = basedir;
         baseuri = basedir.toURI();
         this.readOnly = readOnly;
-        initIndex(basedir);
+        journal = new IndexJournal(basedir);
+        index = new ConcurrentHashMap<CacheKey, Entry>(journal.getCapacity());
+        final boolean loaded = loadIndex();
+        if (loaded) {
+            long bytes = 0;
+            for (final Map.Entry<CacheKey, Entry> entry : index.entrySet()) {
+                bytes += entry.getValue().size;
+                link(entry.getKey(), entry.getValue());
+            }
+            totalBytes.set(bytes);
+        } else {
+            initIndex(basedir);
+        }
+        if (!readOnly) {
+            try {
+                journal.open();
+            } catch (final IOException e) {
+                throw new IllegalStateException(Debug.values("Unable to open index journal", basedir), e);
+            }
+            final ScheduledExecutorService maintenance = getMaintenance();
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    journal.flush();
+                    if (journal.needsCompaction(index.size())) {
+                        compact();
+                    }
+                }
+            }, JOURNAL_FLUSH, JOURNAL_FLUSH, TimeUnit.MILLISECONDS);
+            maintenance.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (loaded) {
+                        // the journal could have missed writes of an crashed run
+                        verifyIndex();
+                    } else {
+                        compact();
+                    }
+                }
+            });
+        }
     }
 
     /**
@@ -98,78 +275,1451 @@ public class ImgCache {
         for (final File entry : basedir.listFiles()) {
             if (entry.isDirectory()) {
                 initIndex(entry);
+            } else if (!discard(entry)) {
+                final CacheKey key = CacheKey.parse(entry.getName());
+                if (key != null) {
+                    add(key, new Entry(entry, entry.length(), entry.lastModified(), 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * loads the persisted index
+     * 
+     * @return false if it must be scanned
+     */
+    private boolean loadIndex() {
+        try {
+            return journal.load(index, !readOnly);
+        } catch (final IOException e) {
+            index.clear();
+            return false;
+        }
+    }
+
+    /**
+     * compares the loaded index against the directory, runs in background
+     */
+    private void verifyIndex() {
+        final Set<CacheKey> found = new HashSet<CacheKey>(index.size() * 4 / 3 + 1);
+        verifyIndex(basedir, found);
+        for (final Map.Entry<CacheKey, Entry> entry : index.entrySet()) {
+            if (!found.contains(entry.getKey()) && !file(entry.getKey(), entry.getValue()).exists()) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * adds untracked files of an directory and collects all seen ones
+     * 
+     * @param dir
+     * @param found
+     */
+    private void verifyIndex(final File dir, final Set<CacheKey> found) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File entry : files) {
+            if (entry.isDirectory()) {
+                verifyIndex(entry, found);
             } else {
-                final URI relative = baseuri.relativize(entry.toURI());
-                index.put(relative.toString(), entry);
+                final CacheKey key = CacheKey.parse(entry.getName());
+                final Entry known = key != null ? index.get(key) : null;
+                if (known != null && !entry.equals(file(key, known))) {
+                    entry.delete(); // stale copy in the other layout
+                } else if (known != null && known.size == entry.length()) {
+                    found.add(key);
+                } else if (known != null) {
+                    evict(key, known); // changed behind the index, can't be trusted
+                } else if (!discard(entry) && key != null) {
+                    found.add(key);
+                    add(key, new Entry(entry, entry.length(), entry.lastModified(), 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * deletes leftovers of interrupted writes unless readonly, untracked cachefiles must end like a complete image
+     * 
+     * @param file
+     * @return true if the file is an leftover
+     */
+    private boolean discard(final File file) {
+        final String name = file.getName();
+        final boolean leftover;
+        if (name.endsWith(TMP_SUFFIX)) {
+            leftover = CacheKey.parse(name.substring(0, name.length() - TMP_SUFFIX.length())) != null;
+        } else {
+            final CacheKey key = CacheKey.parse(name);
+            leftover = key != null && !isComplete(file, key.format);
+        }
+        if (leftover && !readOnly) {
+            file.delete();
+        }
+        return leftover;
+    }
+
+    /**
+     * checks the trailer of known formats, written by older versions or other tools a crash could have truncated
+     * them
+     * 
+     * @param file
+     * @param format
+     * @return
+     */
+    static boolean isComplete(final File file, final String format) {
+        final long length = file.length();
+        final byte[] tail;
+        if ("jpg".equals(format) || "jpeg".equals(format)) {
+            tail = new byte[] { (byte) 0xff, (byte) 0xd9 }; // end of image
+        } else if ("png".equals(format)) {
+            tail = new byte[] { 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82 }; // end chunk and its crc
+        } else if ("gif".equals(format)) {
+            tail = new byte[] { 0x3b }; // trailer
+        } else {
+            return length > 0;
+        }
+        if (length < tail.length) {
+            return false;
+        }
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final byte[] read = new byte[tail.length];
+                in.seek(length - tail.length);
+                in.readFully(read);
+                return Arrays.equals(read, tail);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * writes an new index snapshot, runs in background
+     */
+    private void compact() {
+        try {
+            journal.compact(index);
+        } catch (final IOException e) {
+            // keeps journaling, next start replays the longer journal
+        }
+    }
+
+    /**
+     * adds an entry to the index
+     * 
+     * @param key
+     * @param entry
+     */
+    private void add(final CacheKey key, final Entry entry) {
+        final Entry replaced = index.put(key, entry);
+        totalBytes.addAndGet(replaced != null ? entry.size - replaced.size : entry.size);
+        if (replaced != null) {
+            unlink(key, replaced);
+        }
+        link(key, entry);
+        journal.added(key, entry);
+    }
+
+    /**
+     * adds an entry to the reverse index and watches its source directory
+     * 
+     * @param key
+     * @param entry
+     */
+    private void link(final CacheKey key, final Entry entry) {
+        if (entry.source == null) {
+            return;
+        }
+        variants.compute(entry.source.path, new BiFunction<String, Set<CacheKey>, Set<CacheKey>>() {
+            @Override
+            public Set<CacheKey> apply(final String path, final Set<CacheKey> keys) {
+                final Set<CacheKey> ret = keys != null ? keys : new HashSet<CacheKey>(4);
+                ret.add(key);
+                return ret;
+            }
+        });
+        if (watcher != null) {
+            watch(entry.source.path);
+        }
+    }
+
+    /**
+     * removes an entry from the reverse index
+     * 
+     * @param key
+     * @param entry
+     */
+    private void unlink(final CacheKey key, final Entry entry) {
+        if (entry.source == null) {
+            return;
+        }
+        variants.computeIfPresent(entry.source.path, new BiFunction<String, Set<CacheKey>, Set<CacheKey>>() {
+            @Override
+            public Set<CacheKey> apply(final String path, final Set<CacheKey> keys) {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            }
+        });
+    }
+
+    /**
+     * removes an entry from index and disk if it wasn't replaced meanwhile, only from the index if readonly
+     * 
+     * @param key
+     * @param entry
+     * @return true if the entry was evicted
+     */
+    boolean evict(final CacheKey key, final Entry entry) {
+        if (!index.remove(key, entry)) {
+            return false;
+        }
+        totalBytes.addAndGet(-entry.size);
+        unlink(key, entry);
+        if (!readOnly) {
+            // an readonly instance only forgets it, the files belong to the writing one
+            journal.removed(key);
+            file(key, entry).delete();
+        }
+        return true;
+    }
+
+    /**
+     * purges all variants of an source from index, disk, memory tier and pending writes
+     * 
+     * @param source
+     *            identifier as rendered from
+     * @return amount of purged variants
+     */
+    public int invalidate(final String source) {
+        final String path = new File(source).getAbsolutePath();
+        final MemoryCache memory = this.memory;
+        int ret = 0;
+        final Set<CacheKey> keys = variants.remove(path);
+        if (keys != null) {
+            for (final CacheKey key : keys) {
+                final Entry entry = index.get(key);
+                if (entry != null && evict(key, entry)) {
+                    ret++;
+                }
+                if (memory != null) {
+                    memory.remove(key);
+                }
+            }
+        }
+        // not indexed yet, only live keys are written
+        for (final Map.Entry<CacheKey, CachedImage> pending : writing.entrySet()) {
+            final CacheKey key = pending.getKey();
+            if (path.equals(new File(key.source).getAbsolutePath()) && writing.remove(key, pending.getValue())) {
+                if (memory != null) {
+                    memory.remove(key);
+                }
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * checks the source of an hit unless done recently and purges all its variants if it changed
+     * 
+     * @param entry
+     *            can be null
+     * @return false if the variant is stale
+     */
+    private boolean isFresh(final Entry entry) {
+        final long revalidate = this.revalidate;
+        if (entry == null || entry.source == null || revalidate < 0) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - entry.validated < revalidate) {
+            return true;
+        }
+        entry.validated = now;
+        if (entry.source.isCurrent()) {
+            return true;
+        }
+        metrics.count(CacheMetrics.Event.STALE);
+        invalidate(entry.source.path);
+        return false;
+    }
+
+    /**
+     * checks all sources of an directory whose events got lost
+     * 
+     * @param dir
+     */
+    private void revalidate(final Path dir) {
+        for (final Map.Entry<String, Set<CacheKey>> source : variants.entrySet()) {
+            if (!dir.equals(Paths.get(source.getKey()).getParent())) {
+                continue;
+            }
+            for (final CacheKey key : source.getValue().toArray(new CacheKey[0])) {
+                final Entry entry = index.get(key);
+                if (entry != null && entry.source != null && !entry.source.isCurrent()) {
+                    invalidate(source.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * registers the directory of an source for change events once
+     * 
+     * @param source
+     *            absolute path
+     */
+    private void watch(final String source) {
+        final WatchService watcher = this.watcher;
+        final Path dir = Paths.get(source).getParent();
+        if (watcher == null || dir == null || watched.containsKey(dir)) {
+            return;
+        }
+        try {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(dir, Boolean.TRUE);
+        } catch (final IOException e) {
+            // gone or out of watches, checks on hits still apply
+            watched.put(dir, Boolean.FALSE);
+        } catch (final ClosedWatchServiceException e) {
+            // disabled meanwhile
+        }
+    }
+
+    /**
+     * purges the variants of changed sources until the watch service gets closed
+     * 
+     * @param watcher
+     */
+    private void watch(final WatchService watcher) {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                final Path dir = (Path) key.watchable();
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            revalidate(dir);
+                        } else {
+                            invalidate(dir.resolve((Path) event.context()).toString());
+                        }
+                    } catch (final RuntimeException e) {
+                        // one failing event must not end watching, checks on hits cover its source
+                        metrics.count(CacheMetrics.Event.WATCH_FAILURE);
+                        System.err.println(Debug.values("Watch event failed", dir, event.context(), e));
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(dir);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException e) {
+            // disabled
+        }
+    }
+
+    /**
+     * enables purging the variants of an source as soon as it changes, by watching all source directories. the
+     * amount of watches is limited by the os, checks on hits cover the rest.
+     * 
+     * @param watching
+     * @throws IOException
+     */
+    public synchronized void setWatching(final boolean watching) throws IOException {
+        if (watching == (watcher != null)) {
+            return;
+        }
+        if (watching) {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch(service);
+                }
+            }, Debug.values("ImgCache watcher", basedir));
+            thread.setDaemon(true);
+            thread.start();
+            watcher = service;
+            for (final String source : variants.keySet()) {
+                watch(source);
+            }
+        } else {
+            watcher.close();
+            watcher = null;
+            watched.clear();
+        }
+    }
+
+    /**
+     * gets if source directories are watched
+     * 
+     * @return
+     */
+    public boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * sets the minimum time between two checks of an variants source on hits
+     * 
+     * @param millis
+     *            0 checks every hit, negative never
+     */
+    public void setRevalidate(final long millis) {
+        revalidate = millis;
+    }
+
+    /**
+     * gets the minimum time between two checks of an variants source on hits
+     * 
+     * @return negative if disabled
+     */
+    public long getRevalidate() {
+        return revalidate;
+    }
+
+    /**
+     * gets the cachefile of an entry, resolved lazily for entries loaded from the journal. falls back to the flat
+     * layout of older versions until the cache is migrated.
+     * 
+     * @param key
+     * @param entry
+     * @return
+     */
+    File file(final CacheKey key, final Entry entry) {
+        File file = entry.file;
+        if (file == null) {
+            file = new File(basedir, key.getPath());
+            if (!file.exists()) {
+                final File flat = new File(basedir, key.getFileName());
+                if (flat.exists()) {
+                    file = flat;
+                }
+            }
+            entry.file = file;
+        }
+        return file;
+    }
+
+    /**
+     * moves cachefiles of the flat layout of older versions into their shard directories
+     * 
+     * @return amount of moved files
+     * @throws IOException
+     */
+    public int migrate() throws IOException {
+        if (isReadOnly()) {
+            throw new IllegalStateException(Debug.values("Cache is readonly", basedir));
+        }
+        int moved = 0;
+        for (final File flat : basedir.listFiles()) {
+            final CacheKey key = flat.isFile() ? CacheKey.parse(flat.getName()) : null;
+            if (key == null) {
+                continue;
+            }
+            final File sharded = new File(basedir, key.getPath());
+            if (sharded.exists()) {
+                flat.delete(); // rendered again meanwhile
+                continue;
+            }
+            sharded.getParentFile().mkdirs();
+            Files.move(flat.toPath(), sharded.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            final Entry entry = index.get(key);
+            if (entry != null) {
+                entry.file = sharded;
+            }
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * gets a snapshot view of the index
+     * 
+     * @return
+     */
+    Set<Map.Entry<CacheKey, Entry>> entries() {
+        return index.entrySet();
+    }
+
+    /**
+     * gets the summed size of all indexed files
+     * 
+     * @return
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * gets the amount of indexed files
+     * 
+     * @return
+     */
+    public int getCount() {
+        return index.size();
+    }
+
+    /**
+     * checks if is no new files get written, either configured or because of low diskspace
+     * 
+     * @return
+     */
+    public boolean isReadOnly() {
+        return readOnly || lowSpace;
+    }
+
+    /**
+     * toggles readonly behaviour because of low diskspace
+     * 
+     * @param lowSpace
+     */
+    void setLowSpace(final boolean lowSpace) {
+        this.lowSpace = lowSpace;
+    }
+
+    /**
+     * sets the disk quota which gets enforced in background, null disables it
+     * 
+     * @param quota
+     */
+    public synchronized void setQuota(final DiskQuota quota) {
+        if (quotaTask != null) {
+            quotaTask.cancel(false);
+            quotaTask = null;
+        }
+        this.quota = quota;
+        lowSpace = false;
+        if (quota != null) {
+            quotaTask = getMaintenance().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    quota.enforce(ImgCache.this);
+                }
+            }, 0, quota.period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * gets the disk quota
+     * 
+     * @return null if disabled
+     */
+    public DiskQuota getQuota() {
+        return quota;
+    }
+
+    /**
+     * gets the background worker, creates it on first use
+     * 
+     * @return
+     * @throws RejectedExecutionException
+     *             once closed
+     */
+    private synchronized ScheduledExecutorService getMaintenance() {
+        if (closed) {
+            throw new RejectedExecutionException(Debug.values("Cache is closed", basedir));
+        }
+        if (maintenance == null) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, Debug.values("ImgCache maintenance", basedir));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return maintenance;
+    }
+
+    /**
+     * stops all background work and persists the index
+     */
+    public synchronized void close() {
+        closed = true;
+        quota = null;
+        quotaTask = null;
+        if (watcher != null) {
+            try {
+                setWatching(false);
+            } catch (final IOException e) {
+                // only thrown while enabling
+            }
+        }
+        if (maintenance != null) {
+            maintenance.shutdown();
+            try {
+                maintenance.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            maintenance = null;
+        }
+        if (ownRenders) {
+            renders.shutdown();
+            renders = null;
+            ownRenders = false;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        if (!readOnly) {
+            compact();
+            journal.close();
+        }
+    }
+
+    /**
+     * sets if written cachefiles get forced to the device before they are renamed into place
+     * 
+     * @param sync
+     */
+    public void setSync(final boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * gets if written cachefiles get forced to the device
+     * 
+     * @return
+     */
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * gets the amount of cachefiles which failed to be written
+     * 
+     * @return
+     */
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    /**
+     * gets the background writer, creates it on first use. if its queue is full renderers write themselves.
+     * 
+     * @return null once closed
+     */
+    private synchronized ThreadPoolExecutor getWriter() {
+        if (closed) {
+            return null;
+        }
+        if (writer == null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+                    MAX_WRITES), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, Debug.values("ImgCache writer", basedir));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                    // closed meanwhile, a write must never stay pending. the next start picks up the unjournaled file
+                    r.run();
+                }
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * sets the in memory tier, null disables it
+     * 
+     * @param memory
+     */
+    public void setMemoryCache(final MemoryCache memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * gets the in memory tier
+     * 
+     * @return null if disabled
+     */
+    public MemoryCache getMemoryCache() {
+        return memory;
+    }
+
+    /**
+     * sets the workers for asynchronous misses, they stay owned by the caller
+     * 
+     * @param renders
+     */
+    public synchronized void setRenderPool(final RenderPool renders) {
+        if (ownRenders) {
+            this.renders.shutdown();
+            ownRenders = false;
+        }
+        this.renders = renders;
+    }
+
+    /**
+     * gets the workers for asynchronous misses, creates an own default one on first use
+     * 
+     * @return
+     */
+    public synchronized RenderPool getRenderPool() {
+        if (renders == null) {
+            renders = new RenderPool();
+            ownRenders = true;
+        }
+        return renders;
+    }
+
+    /**
+     * sets how output formats get chosen by accept headers
+     * 
+     * @param negotiator
+     *            null keeps the format of the source
+     */
+    public void setNegotiator(final FormatNegotiator negotiator) {
+        this.negotiator = negotiator != null ? negotiator : new FormatNegotiator();
+    }
+
+    /**
+     * gets how output formats get chosen by accept headers
+     * 
+     * @return
+     */
+    public FormatNegotiator getNegotiator() {
+        return negotiator;
+    }
+
+    /**
+     * sets the instrumentation
+     * 
+     * @param metrics
+     *            null to disable
+     */
+    public void setMetrics(final CacheMetrics metrics) {
+        this.metrics = metrics != null ? metrics : CacheMetrics.NOOP;
+    }
+
+    /**
+     * gets the instrumentation
+     * 
+     * @return CacheMetrics.NOOP if disabled
+     */
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * sets the mark added to requested keys without one, marked variants are cached apart from unmarked ones
+     * 
+     * @param watermark
+     *            null for none
+     */
+    public void setWatermark(final Watermark watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * gets the mark added to requested keys
+     * 
+     * @return null if none
+     */
+    public Watermark getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * turns the sources of requested keys upright by their exif orientation, oriented variants are cached apart
+     * from the ones rendered as stored
+     * 
+     * @param orienting
+     */
+    public void setOrienting(final boolean orienting) {
+        this.orienting = orienting;
+    }
+
+    /**
+     * checks if sources get turned upright by their exif orientation
+     * 
+     * @return
+     */
+    public boolean isOrienting() {
+        return orienting;
+    }
+
+    /**
+     * gets an existing or prepares an new cached image in high quality and the format of the source
+     * 
+     * @param identifier
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     *            encoder quality 0-100, -1 for default
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public CachedImage get(final String identifier, final int width, final int height, final int rotation,
+            final int quality) throws FileNotFoundException, IOException, IllegalStateException {
+        return get(identifier, width, height, rotation, quality, null);
+    }
+
+    /**
+     * gets an existing or prepares an new cached image in high quality and the format negotiated with the client.
+     * the response must carry "Vary: Accept" as it depends on it.
+     * 
+     * @param identifier
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     *            encoder quality 0-100, -1 for default
+     * @param accept
+     *            header value, null keeps the format of the source
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public CachedImage get(final String identifier, final int width, final int height, final int rotation,
+            final int quality, final String accept) throws FileNotFoundException, IOException,
+            IllegalStateException {
+        return get(new CacheKey(identifier, width, height, rotation, Image.Quality.HIGH, format(identifier, accept),
+                quality));
+    }
+
+    /**
+     * gets an existing or prepares an new cached variant
+     * 
+     * @param requested
+     *            gets the mark and orientation of the cache if it has none
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws IllegalStateException
+     */
+    public CachedImage get(final CacheKey requested) throws FileNotFoundException, IOException,
+            IllegalStateException {
+        final CacheKey key = resolve(requested);
+        final CachedImage hit = lookup(key);
+        if (hit != null) {
+            return hit;
+        }
+        // create image, only the first miss renders
+        final CompletableFuture<CachedImage> task = new CompletableFuture<CachedImage>();
+        final CompletableFuture<CachedImage> running = pending.putIfAbsent(key, task);
+        if (running != null) {
+            metrics.count(CacheMetrics.Event.SHARED_MISS);
+            return await(running);
+        }
+        try {
+            final CachedImage ret = render(key);
+            task.complete(ret);
+            return ret;
+        } catch (final Throwable e) {
+            task.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(key, task);
+        }
+    }
+
+    /**
+     * delegate in high quality and the format of the source
+     * 
+     * @param identifier
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     *            encoder quality 0-100, -1 for default
+     * @return
+     */
+    public CompletableFuture<CachedImage> getAsync(final String identifier, final int width, final int height,
+            final int rotation, final int quality) {
+        return getAsync(identifier, width, height, rotation, quality, null);
+    }
+
+    /**
+     * delegate in high quality and the format negotiated with the client
+     * 
+     * @param identifier
+     * @param width
+     * @param height
+     * @param rotation
+     * @param quality
+     *            encoder quality 0-100, -1 for default
+     * @param accept
+     *            header value, null keeps the format of the source
+     * @return
+     */
+    public CompletableFuture<CachedImage> getAsync(final String identifier, final int width, final int height,
+            final int rotation, final int quality, final String accept) {
+        return getAsync(new CacheKey(identifier, width, height, rotation, Image.Quality.HIGH, format(identifier,
+                accept), quality));
+    }
+
+    /**
+     * adds the mark and orientation of the cache to an key without them
+     * 
+     * @param key
+     * @return
+     */
+    private CacheKey resolve(final CacheKey key) {
+        final Watermark watermark = this.watermark;
+        final CacheKey ret = key.watermark == null && watermark != null ? key.mark(watermark) : key;
+        return !ret.upright && orienting ? ret.upright(true) : ret;
+    }
+
+    /**
+     * gets the output format of an source for an client
+     * 
+     * @param identifier
+     * @param accept
+     *            can be null
+     * @return
+     */
+    private String format(final String identifier, final String accept) {
+        final String format = identifier.substring(identifier.lastIndexOf(".") + 1).toLowerCase(Locale.ENGLISH);
+        return negotiator.negotiate(accept, format);
+    }
+
+    /**
+     * gets an existing variant right away or renders an missing one by the render pool. concurrent misses share
+     * one rendering, if the pool is saturated the result completes with an RejectedExecutionException.
+     * 
+     * @param requested
+     *            gets the mark and orientation of the cache if it has none
+     * @return
+     */
+    public CompletableFuture<CachedImage> getAsync(final CacheKey requested) {
+        final CacheKey key = resolve(requested);
+        final CachedImage hit;
+        try {
+            hit = lookup(key);
+        } catch (final IOException e) {
+            final CompletableFuture<CachedImage> ret = new CompletableFuture<CachedImage>();
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        if (hit != null) {
+            return CompletableFuture.completedFuture(hit);
+        }
+        final CompletableFuture<CachedImage> task = new CompletableFuture<CachedImage>();
+        final CompletableFuture<CachedImage> running = pending.putIfAbsent(key, task);
+        if (running != null) {
+            metrics.count(CacheMetrics.Event.SHARED_MISS);
+            return follow(running);
+        }
+        getRenderPool().submit(new Callable<CachedImage>() {
+            @Override
+            public CachedImage call() throws Exception {
+                return render(key);
+            }
+        }, estimate(key)).whenComplete(new BiConsumer<CachedImage, Throwable>() {
+            @Override
+            public void accept(final CachedImage result, final Throwable failure) {
+                pending.remove(key, task);
+                if (failure instanceof RejectedExecutionException) {
+                    metrics.count(CacheMetrics.Event.REJECTED);
+                }
+                if (failure != null) {
+                    task.completeExceptionally(failure);
+                } else {
+                    task.complete(result);
+                }
+            }
+        });
+        return follow(task);
+    }
+
+    /**
+     * gets an variant from the memory tier or the index without rendering
+     * 
+     * @param key
+     * @return null if missing
+     * @throws IOException
+     */
+    private CachedImage lookup(final CacheKey key) throws IOException {
+        final CacheMetrics metrics = this.metrics;
+        final long start = metrics.start();
+        try {
+            final MemoryCache memory = this.memory;
+            if (memory != null) {
+                final CachedImage held = memory.get(key);
+                if (held != null) {
+                    final Entry entry = index.get(key);
+                    if (isFresh(entry)) {
+                        // the quota evicts by the access time, hot variants must stay on disk too
+                        touch(entry);
+                        metrics.count(CacheMetrics.Event.MEMORY_HIT);
+                        return held;
+                    }
+                }
+            }
+            final CachedImage written = writing.get(key);
+            if (written != null) {
+                touch(index.get(key)); // an earlier version still on disk
+                metrics.count(CacheMetrics.Event.MEMORY_HIT);
+                return written;
+            }
+            final Entry target = index.get(key);
+            // file exists, paththrough
+            if (target != null && isFresh(target)) {
+                metrics.count(CacheMetrics.Event.DISK_HIT);
+                touch(target);
+                final CachedImage cImage = new CachedImage(file(key, target), target);
+                if (memory != null && memory.fits(target.size)) {
+                    promote(memory, key, target);
+                }
+                return cImage; // disk backed, so it's transfered without copying
+            }
+            metrics.count(CacheMetrics.Event.MISS);
+            return null;
+        } finally {
+            metrics.record(CacheMetrics.Stage.LOOKUP, start);
+        }
+    }
+
+    /**
+     * records an hit for the quota
+     * 
+     * @param entry
+     *            can be null
+     */
+    private static void touch(final Entry entry) {
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * copies an variant into the memory tier on its second disk hit, read in background so the request isn't delayed
+     * 
+     * @param memory
+     * @param key
+     * @param entry
+     */
+    private void promote(final MemoryCache memory, final CacheKey key, final Entry entry) {
+        if (!entry.seen) {
+            entry.seen = true;
+            return;
+        }
+        entry.seen = false;
+        try {
+            getMaintenance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (memory.contains(key) || index.get(key) != entry) {
+                        return;
+                    }
+                    try {
+                        memory.put(key, new CachedImage(file(key, entry), entry));
+                    } catch (final IOException e) {
+                        // evicted meanwhile, served from disk or rendered again
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    /**
+     * worst case of decoded bytes while rendering an variant. decoding keeps less than 4 times the target per axis,
+     * an unsized target is assumed to decode UNSIZED_PIXELS.
+     * 
+     * @param key
+     * @return
+     */
+    private static long estimate(final CacheKey key) {
+        final long width = key.width > 0 ? key.width : key.height;
+        final long height = key.height > 0 ? key.height : key.width;
+        final long target = width > 0 ? width * height : UNSIZED_PIXELS;
+        return (16 + 1) * target * 4; // decoded and result argb
+    }
+
+    /**
+     * gets an dependent future so callers can't complete or cancel an shared rendering
+     * 
+     * @param task
+     * @return
+     */
+    private static CompletableFuture<CachedImage> follow(final CompletableFuture<CachedImage> task) {
+        return task.thenApply(new Function<CachedImage, CachedImage>() {
+            @Override
+            public CachedImage apply(final CachedImage image) {
+                return image;
+            }
+        });
+    }
+
+    /**
+     * delegate using one thread per core
+     * 
+     * @param sources
+     * @param variants
+     * @param progress
+     *            can be null
+     * @return amount of rendered variants
+     * @throws InterruptedException
+     */
+    public int prewarm(final Collection<String> sources, final Collection<Variant> variants,
+            final Progress progress) throws InterruptedException {
+        return prewarm(sources, variants, Runtime.getRuntime().availableProcessors(), progress);
+    }
+
+    /**
+     * renders all missing variants of sources ahead of traffic, blocks until all are done. each source gets
+     * decoded once for all its variants which are rendered from the largest down to the smallest, reducing the
+     * decoded raster along the way. variants already indexed or in progress are skipped.
+     * 
+     * @param sources
+     * @param variants
+     * @param threads
+     * @param progress
+     *            can be null
+     * @return amount of rendered variants
+     * @throws InterruptedException
+     */
+    public int prewarm(final Collection<String> sources, final Collection<Variant> variants, final int threads,
+            final Progress progress) throws InterruptedException {
+        if (isReadOnly()) {
+            throw new IllegalStateException(Debug.values("Cache is readonly", basedir));
+        }
+        final List<Variant> specs = new ArrayList<Variant>(variants);
+        final AtomicInteger rendered = new AtomicInteger();
+        final ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, Debug.values("ImgCache prewarm", basedir, count.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (final String source : sources) {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        rendered.addAndGet(prewarm(source, specs, progress));
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            workers.shutdownNow();
+        }
+        return rendered.get();
+    }
+
+    /**
+     * renders the missing variants of one source
+     * 
+     * @param source
+     * @param variants
+     * @param progress
+     *            can be null
+     * @return amount of rendered variants
+     */
+    private int prewarm(final String source, final List<Variant> variants, final Progress progress) {
+        final List<CacheKey> keys = new ArrayList<CacheKey>(variants.size());
+        final List<CompletableFuture<CachedImage>> tasks = new ArrayList<CompletableFuture<CachedImage>>(
+                variants.size());
+        int rendered = 0;
+        Exception failure = null;
+        try {
+            // claim the missing ones like an miss would
+            boolean low = true;
+            for (final Variant variant : variants) {
+                final CacheKey key = resolve(variant.key(source));
+                final Entry known = index.get(key);
+                if (known != null && isFresh(known) || writing.containsKey(key) || !keys.isEmpty()
+                        && keys.get(0).upright != key.upright) {
+                    continue; // a toggled orientation gets rendered on its miss
+                }
+                final CompletableFuture<CachedImage> task = new CompletableFuture<CachedImage>();
+                if (pending.putIfAbsent(key, task) != null) {
+                    continue;
+                }
+                keys.add(key);
+                tasks.add(task);
+                low &= key.quality == Image.Quality.LOW;
+            }
+            if (!keys.isEmpty()) {
+                final Dimension[] sizes = new Dimension[keys.size()];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = new Dimension(keys.get(i).width, keys.get(i).height);
+                }
+                final File input = getInput(source);
+                final Stamp stamp = new Stamp(input);
+                final CacheMetrics metrics = this.metrics;
+                final long start = metrics.start();
+                BufferedImage base = Image.read(input, sizes, low ? Image.Quality.LOW : Image.Quality.HIGH,
+                        keys.get(0).upright);
+                metrics.record(CacheMetrics.Stage.DECODE, start);
+                for (final int i : order(sizes, base.getWidth(), base.getHeight())) {
+                    final CacheKey key = keys.get(i);
+                    final CachedImage cached = cached(key); // rendered before the claim
+                    if (cached != null) {
+                        tasks.get(i).complete(cached);
+                        continue;
+                    }
+                    // keep the base twice as large as the variant, the following ones are smaller
+                    final Rectangle region = Image.crop(base.getWidth(), base.getHeight(), sizes[i]);
+                    final int reduce = Math.min(region.width / (sizes[i].width * 2), region.height
+                            / (sizes[i].height * 2));
+                    final long resize = metrics.start();
+                    if (reduce >= 2) {
+                        // shared by the following variants, so never reduced by an cheaper preset of this one
+                        base = Image.resize(base, new Dimension(base.getWidth() / reduce, base.getHeight() / reduce),
+                                Image.Quality.HIGH);
+                    }
+                    final BufferedImage result = new ImagePipeline(base).resize(key.width, key.height, key.quality)
+                            .rotate(key.rotation).watermark(key.watermark).execute();
+                    metrics.record(CacheMetrics.Stage.RESIZE, resize);
+                    tasks.get(i).complete(store(key, result, stamp));
+                    rendered++;
+                }
+            }
+        } catch (final Exception e) {
+            failure = e;
+        } finally {
+            for (int i = 0; i < keys.size(); i++) {
+                if (!tasks.get(i).isDone()) {
+                    tasks.get(i).completeExceptionally(failure != null ? failure : new IllegalStateException(
+                            Debug.values("Prewarm aborted", source)));
+                }
+                pending.remove(keys.get(i), tasks.get(i));
+            }
+        }
+        if (progress != null) {
+            progress.done(source, rendered, variants.size() - keys.size(), failure);
+        }
+        return rendered;
+    }
+
+    /**
+     * resolves sizes against an source and gets their indices from the largest to the smallest
+     * 
+     * @param sizes
+     *            get resolved
+     * @param width
+     * @param height
+     * @return
+     */
+    private static Integer[] order(final Dimension[] sizes, final int width, final int height) {
+        final Integer[] ret = new Integer[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            Image.crop(width, height, sizes[i]);
+            ret[i] = i;
+        }
+        Arrays.sort(ret, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Long.compare((long) sizes[b].width * sizes[b].height, (long) sizes[a].width
+                        * sizes[a].height);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * renders and stores an variant, must only run once per key at a time
+     * 
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    private CachedImage render(final CacheKey key) throws IOException {
+        // an earlier rendering could have finished meanwhile
+        final CachedImage cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+        // stamped before reading, so an change while rendering is caught by the next check
+        final File input = getInput(key.source);
+        final Stamp stamp = new Stamp(input);
+        final BufferedImage result = new ImagePipeline(input, key.upright).resize(key.width, key.height, key.quality)
+                .rotate(key.rotation).watermark(key.watermark).metrics(metrics).execute();
+        return store(key, result, stamp);
+    }
+
+    /**
+     * gets an rendered variant being written or on disk without touching its access time
+     * 
+     * @param key
+     * @return null if missing
+     */
+    private CachedImage cached(final CacheKey key) {
+        final CachedImage written = writing.get(key);
+        if (written != null) {
+            return written;
+        }
+        final Entry target = index.get(key);
+        return target != null ? new CachedImage(file(key, target), target) : null;
+    }
+
+    /**
+     * queues an rendered variant for writing unless readonly and puts it into the memory tier
+     * 
+     * @param key
+     * @param result
+     * @param source
+     * @return
+     * @throws IOException
+     */
+    private CachedImage store(final CacheKey key, final BufferedImage result, final Stamp source)
+            throws IOException {
+        final CachedImage cImage = new CachedImage(key.getFileName(), new Date(), result, key.encoderQuality);
+        // the caller sends the bytes anyway, so encoding is done here and the writer only writes
+        final CacheMetrics metrics = this.metrics;
+        final long start = metrics.start();
+        cImage.bytes();
+        metrics.record(CacheMetrics.Stage.ENCODE, start);
+        final ThreadPoolExecutor writer = isReadOnly() ? null : getWriter();
+        if (writer != null) {
+            writing.put(key, cImage);
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(key, cImage, source);
+                }
+            });
+        }
+        final MemoryCache memory = this.memory;
+        if (memory != null) {
+            memory.put(key, cImage);
+        }
+        return cImage;
+    }
+
+    /**
+     * writes an variant into an temporary file and renames it into place, so the cachefile is either complete or
+     * missing. it gets indexed before it stops being served from memory.
+     * 
+     * @param key
+     * @param cImage
+     * @param source
+     */
+    private void write(final CacheKey key, final CachedImage cImage, final Stamp source) {
+        final File cacheFile = new File(basedir, key.getPath());
+        final File temp = new File(cacheFile.getParentFile(), cacheFile.getName() + TMP_SUFFIX);
+        final CacheMetrics metrics = this.metrics;
+        final long start = metrics.start();
+        try {
+            final byte[] data = cImage.bytes();
+            final File shard = cacheFile.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+                throw new IOException(Debug.values("Unable to create shard directory", shard));
+            }
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+                if (sync) {
+                    out.getFD().sync();
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            final Entry entry = new Entry(cacheFile, data.length, System.currentTimeMillis(), cImage.getHash(),
+                    source);
+            entry.validated = entry.lastAccess;
+            add(key, entry);
+            if (writing.get(key) != cImage) {
+                evict(key, entry); // source changed while writing
             }
+            metrics.record(CacheMetrics.Stage.WRITE, start);
+            requestEnforce();
+        } catch (final IOException e) {
+            writeFailures.incrementAndGet();
+            metrics.count(CacheMetrics.Event.WRITE_FAILURE);
+            temp.delete();
+        } finally {
+            writing.remove(key, cImage);
         }
     }
 
     /**
-     * gets an existing or prepares an new cached image
-     * 
-     * @param identifier
-     * @param width
-     * @param height
-     * @param rotation
-     * @param quality
-     * @return
-     * @throws FileNotFoundException
-     * @throws IOException
-     * @throws IllegalStateException
+     * lets the quota run early if a write exceeded it, never blocks
      */
-    public CachedImage get(String identifier, final int width, final int height, final int rotation, final int quality)
-            throws FileNotFoundException, IOException, IllegalStateException {
-        identifier = prepareIdentifier(identifier);
-        final File target = index.get(identifier);
-        // file exists, paththrough
-        if (target != null) {
-            return new CachedImage(target);
-        }
-        // create image
-        else {
-            final BufferedImage result = Image.resize(getInput(identifier), new Dimension(width, height),
-                    Image.Quality.HIGH);
-            final CachedImage cImage = new CachedImage(identifier, new Date(), result);
-            // file not exists, creating
-            if (!readOnly) {
-                final File cacheFile = new File(basedir.toString() + File.pathSeparator + identifier);
-                if (cacheFile.createNewFile()) {
-                    final FileOutputStream out = new FileOutputStream(cacheFile);
-                    out.write(cImage.getData());
-                    out.close();
-                    index.put(identifier, cacheFile);
-                } else {
-                    throw new IllegalStateException(Debug.values("Unable to create cachefile", cacheFile));
+    private void requestEnforce() {
+        final DiskQuota quota = this.quota;
+        if (quota != null && quota.isExceeded(this) && quota.schedule()) {
+            final ScheduledExecutorService maintenance = this.maintenance;
+            if (maintenance != null) {
+                try {
+                    maintenance.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            quota.enforce(ImgCache.this);
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    // closed meanwhile
                 }
             }
-            return cImage;
         }
     }
 
     /**
-     * extends the identifier with all params
+     * waits for an rendering and unwraps its failure
      * 
-     * @param identifier
-     * @param params
+     * @param task
      * @return
+     * @throws IOException
      */
-    private String prepareIdentifier(final String identifier, final Object... params) {
-        final StringBuilder result = new StringBuilder(identifier);
-        for (final Object entry : params) {
-            result.append(entry);
+    private static CachedImage await(final Future<CachedImage> task) throws IOException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(Debug.values("Interrupted while waiting for rendering"));
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
         }
-        return result.toString();
     }
 
     /**
-     * opens an image from image base
+     * gets an checked image file from image base
      * 
      * @param identifier
      * @return
      * @throws IOException
      */
-    private BufferedImage getInput(final String identifier) throws IOException {
+    private File getInput(final String identifier) throws IOException {
         final File image = new File(identifier);
         if (!image.isFile()) {
             throw new FileNotFoundException(Debug.values("Target is no file", identifier));
@@ -177,7 +1727,259 @@ public class ImgCache {
         if (image.length() < MIN_FILESIZE) {
             throw new IllegalStateException(Debug.values("File seems to be to small", identifier));
         }
-        return ImageIO.read(image);
+        return image;
+    }
+
+    /**
+     * prewarms an cache from the command line, the sources are read line by line from stdin. or migrates an flat
+     * cache into shards.
+     * 
+     * @param args
+     *            basedir, comma separated variants and optionally the amount of threads or --migrate
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: ImgCache <basedir> <width>x<height>[@<rotation>][:<quality>][.<format>],..."
+                    + " [threads] < sources");
+            System.err.println("       ImgCache <basedir> --migrate");
+            System.exit(1);
+        }
+        if ("--migrate".equals(args[1])) {
+            final ImgCache cache = new ImgCache(new File(args[0]));
+            try {
+                System.out.println(Debug.values("Moved into shards", cache.migrate()));
+            } finally {
+                cache.close();
+            }
+            return;
+        }
+        final List<Variant> variants = new ArrayList<Variant>();
+        for (final String spec : args[1].split(",")) {
+            variants.add(Variant.parse(spec));
+        }
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime()
+                .availableProcessors();
+        final List<String> sources = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.trim().length() > 0) {
+                sources.add(line.trim());
+            }
+        }
+        final ImgCache cache = new ImgCache(new File(args[0]));
+        final long start = System.nanoTime();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger rendered = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        try {
+            cache.prewarm(sources, variants, threads, new Progress() {
+                @Override
+                public void done(final String source, final int count, final int skip, final Exception failure) {
+                    rendered.addAndGet(count);
+                    skipped.addAndGet(skip);
+                    if (failure != null) {
+                        failed.incrementAndGet();
+                        System.err.println(Debug.values("Failed", source, failure));
+                    }
+                    final int finished = done.incrementAndGet();
+                    if (finished % 100 == 0 || finished == sources.size()) {
+                        final double seconds = (System.nanoTime() - start) / 1e9;
+                        System.out.println(String.format(Locale.ENGLISH,
+                                "%d/%d sources, %d rendered, %d skipped, %d failed, %.1f sources/s, %.1f variants/s",
+                                finished, sources.size(), rendered.get(), skipped.get(), failed.get(), finished
+                                        / seconds, rendered.get() / seconds));
+                    }
+                }
+            });
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * index entry of an cachefile
+     * 
+     * @author xyan
+     * 
+     */
+    static class Entry {
+        /**
+         * null until resolved
+         */
+        File file;
+        public final long size;
+        /**
+         * last hit in millis, written racy by request threads
+         */
+        public volatile long lastAccess;
+        /**
+         * xxhash64 of the file, 0 until known for files found on disk
+         */
+        public volatile long contentHash;
+        /**
+         * source as it was rendered from, null if unknown for files found on disk
+         */
+        public final Stamp source;
+        /**
+         * last check of the source in millis, not persisted
+         */
+        public volatile long validated = 0;
+        /**
+         * hit once since the last promotion into the memory tier, not persisted
+         */
+        public volatile boolean seen = false;
+
+        public Entry(final File file, final long size, final long lastAccess, final long contentHash) {
+            this(file, size, lastAccess, contentHash, null);
+        }
+
+        public Entry(final File file, final long size, final long lastAccess, final long contentHash,
+                final Stamp source) {
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.contentHash = contentHash;
+            this.source = source;
+        }
+    }
+
+    /**
+     * state of an source file when it was read
+     * 
+     * @author xyan
+     * 
+     */
+    static final class Stamp {
+        /**
+         * absolute path
+         */
+        public final String path;
+        public final long modified;
+        public final long size;
+
+        public Stamp(final String path, final long modified, final long size) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * takes the current state of an file
+         * 
+         * @param file
+         */
+        public Stamp(final File file) {
+            this(file.getAbsolutePath(), file.lastModified(), file.length());
+        }
+
+        /**
+         * checks if the file is unchanged, an deleted one isn't
+         * 
+         * @return
+         */
+        public boolean isCurrent() {
+            final File file = new File(path);
+            return file.lastModified() == modified && file.length() == size;
+        }
+    }
+
+    /**
+     * variant specification without source for batch rendering
+     * 
+     * @author xyan
+     * 
+     */
+    public static class Variant {
+        /**
+         * "[width]x[height][@rotation][:quality][.format]"
+         */
+        private static final Pattern SPEC = Pattern.compile("(\\d+)x(\\d+)(?:@(\\d+))?(?::(\\w+))?(?:\\.(\\w+))?");
+
+        public final int width;
+        public final int height;
+        public final int rotation;
+        public final Image.Quality quality;
+        /**
+         * null for the format of the source
+         */
+        public final String format;
+        public final int encoderQuality;
+
+        /**
+         * default
+         * 
+         * @param width
+         * @param height
+         * @param rotation
+         * @param quality
+         * @param format
+         *            null for the format of the source
+         * @param encoderQuality
+         *            0-100, -1 for default
+         */
+        public Variant(final int width, final int height, final int rotation, final Image.Quality quality,
+                final String format, final int encoderQuality) {
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.quality = quality;
+            this.format = format;
+            this.encoderQuality = encoderQuality;
+        }
+
+        /**
+         * gets the key of this variant of an source
+         * 
+         * @param source
+         * @return
+         */
+        public CacheKey key(final String source) {
+            return new CacheKey(source, width, height, rotation, quality, format != null ? format
+                    : source.substring(source.lastIndexOf(".") + 1), encoderQuality);
+        }
+
+        /**
+         * parses "[width]x[height][@rotation][:quality][.format]" e.g. "200x0@90:LOW.png"
+         * 
+         * @param spec
+         * @return
+         */
+        public static Variant parse(final String spec) {
+            final Matcher matcher = SPEC.matcher(spec.trim());
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(Debug.values("Invalid variant", spec));
+            }
+            return new Variant(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                    matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 0,
+                    matcher.group(4) != null ? Image.Quality.valueOf(matcher.group(4).toUpperCase(Locale.ENGLISH))
+                            : Image.Quality.HIGH, matcher.group(5), -1);
+        }
+
+        @Override
+        public String toString() {
+            return Debug.fields(width, height, rotation, quality, format, encoderQuality);
+        }
+    }
+
+    /**
+     * gets informed about each finished source of an prewarm, called concurrently
+     * 
+     * @author xyan
+     * 
+     */
+    public interface Progress {
+        /**
+         * @param source
+         * @param rendered
+         * @param skipped
+         *            variants already cached or in progress
+         * @param failure
+         *            null on success
+         */
+        public void done(String source, int rendered, int skipped, Exception failure);
     }
 
     /**
@@ -189,6 +1991,10 @@ public class ImgCache {
      * 
      */
     public static class CachedImage {
+        /**
+         * chunk size copying files to channels which take no transfer
+         */
+        private static final int COPY_BUFFER = 64 * 1024;
         /**
          * creation or modification date
          */
@@ -197,45 +2003,52 @@ public class ImgCache {
          * filename or resource identifier
          */
         public final String name;
-        private final MessageDigest digest; // md5 digest
-        private byte[] hash = null; // store hash
-        private boolean checked = false; // flag to toggle computation
-        private final ByteArray data; // image data
+        private long hash = 0; // xxhash64 of the data, 0 until known
+        private byte[] data = null; // image data, loaded once
+        /**
+         * index entry an computed hash gets recorded in, null if none
+         */
+        private final Entry entry;
         /**
-         * for memory images
+         * for memory images, encoder quality 0-100 or -1 for default
          */
-        private final ImageWriter writer;
         private final BufferedImage image;
+        private final int quality;
         /**
          * for file based
          */
         private final File imageFile;
 
         /**
-         * memory image constructor
+         * delegate with the encoders default quality
          * 
          * @param name
          * @param date
          * @param image
          */
         public CachedImage(final String name, final Date date, final BufferedImage image) {
-            try {
-                digest = MessageDigest.getInstance("MD5");
-            } catch (final NoSuchAlgorithmException e) {
-                throw new IllegalStateException(e);
-            }
+            this(name, date, image, -1);
+        }
+
+        /**
+         * memory image constructor
+         * 
+         * @param name
+         * @param date
+         * @param image
+         * @param quality
+         *            encoder quality 0-100, -1 for default
+         */
+        public CachedImage(final String name, final Date date, final BufferedImage image, final int quality) {
             this.date = date;
             this.name = name;
             this.image = image;
-            final String suffix = name.substring(name.lastIndexOf(".") + 1);
-            final Iterator<ImageWriter> writerList = ImageIO.getImageWritersBySuffix(suffix);
-            if (!writerList.hasNext()) {
-                throw new IllegalStateException(Debug.values("No imagewriter available for suffix", suffix));
-            }
-            writer = writerList.next();
-            // TODO add ouput image type
-            data = new ByteArray(image.getHeight() * image.getWidth() * 4); // save assumption
+            this.quality = quality;
+            if (!EncodeBuffer.isWritable(getFormat())) {
+                throw new IllegalStateException(Debug.values("No imagewriter available for suffix", getFormat()));
+            }
             imageFile = null;
+            entry = null;
         }
 
         /**
@@ -244,78 +2057,302 @@ public class ImgCache {
          * @param imageFile
          */
         public CachedImage(final File imageFile) {
-            try {
-                digest = MessageDigest.getInstance("MD5");
-            } catch (final NoSuchAlgorithmException e) {
-                throw new IllegalStateException(e);
-            }
+            this(imageFile, null);
+        }
+
+        /**
+         * init by indexed diskfile taking its recorded hash
+         * 
+         * @param imageFile
+         * @param entry
+         *            can be null
+         */
+        CachedImage(final File imageFile, final Entry entry) {
             date = new Date(imageFile.lastModified());
             name = imageFile.getName();
             image = null;
-            writer = null;
-            data = new ByteArray(image.getHeight() * image.getWidth() * 4); // save assumption
+            quality = -1;
             this.imageFile = imageFile;
+            this.entry = entry;
+            hash = entry != null ? entry.contentHash : 0;
+        }
+
+        /**
+         * init by already encoded data, e.g. from the memory tier
+         * 
+         * @param name
+         * @param date
+         * @param data
+         * @param hash
+         *            0 to compute on demand
+         */
+        public CachedImage(final String name, final Date date, final byte[] data, final long hash) {
+            this.date = date;
+            this.name = name;
+            this.data = data;
+            this.hash = hash;
+            image = null;
+            quality = -1;
+            imageFile = null;
+            entry = null;
+        }
+
+        /**
+         * gets the format as image suffix
+         * 
+         * @return
+         */
+        public String getFormat() {
+            return name.substring(name.lastIndexOf(".") + 1).toLowerCase(Locale.ENGLISH);
         }
 
         /**
-         * computes data hash
+         * gets the content type to send
+         * 
+         * @return
+         */
+        public String getContentType() {
+            return FormatNegotiator.getMimeType(getFormat());
+        }
+
+        /**
+         * gets the xxhash64 of the data, computed once and recorded in the index so later hits don't read the data
          * 
          * @return
          * @throws IOException
          */
-        public byte[] getHash() throws IOException {
-            if (!checked) {
-                hash = digest.digest(getData());
-                checked = true;
+        public synchronized long getHash() throws IOException {
+            if (hash == 0) {
+                hash = XXHash64.hash(bytes());
+                if (entry != null) {
+                    entry.contentHash = hash; // persisted by the next snapshot
+                }
             }
             return hash;
         }
 
+        /**
+         * gets an strong etag by the content hash
+         * 
+         * @return
+         * @throws IOException
+         */
+        public String getETag() throws IOException {
+            final String hex = Long.toHexString(getHash());
+            final StringBuilder ret = new StringBuilder(18).append('"');
+            for (int i = hex.length(); i < 16; i++) {
+                ret.append('0');
+            }
+            return ret.append(hex).append('"').toString();
+        }
+
+        /**
+         * checks an conditional request, if-none-match takes precedence over if-modified-since like in rfc 7232
+         * 
+         * @param ifNoneMatch
+         *            header value, null if absent
+         * @param ifModifiedSince
+         *            header value in millis, -1 if absent
+         * @return true if 304 not modified can be answered
+         * @throws IOException
+         */
+        public boolean isNotModified(final String ifNoneMatch, final long ifModifiedSince) throws IOException {
+            if (ifNoneMatch != null) {
+                final String etag = getETag();
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.startsWith("W/")) {
+                        tag = tag.substring(2); // weak comparison
+                    }
+                    if ("*".equals(tag) || etag.equals(tag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // http dates have seconds precision
+            return ifModifiedSince >= 0 && date.getTime() / 1000 <= ifModifiedSince / 1000;
+        }
+
         /**
          * returns data size
          * 
          * @return
          * @throws IOException
          */
-        public int getSize() throws IOException {
-            return getData().length;
+        public synchronized int getSize() throws IOException {
+            if (data == null && imageFile != null) {
+                return (int) imageFile.length();
+            }
+            return bytes().length;
+        }
+
+        /**
+         * writes the whole image to an channel
+         * 
+         * @param target
+         * @throws IOException
+         */
+        public void writeTo(final WritableByteChannel target) throws IOException {
+            writeTo(target, 0, getSize());
+        }
+
+        /**
+         * writes an part of the image to an channel, disk images are transfered without copying them onto the heap
+         * 
+         * @param target
+         *            blocking channel
+         * @param offset
+         * @param length
+         * @throws IOException
+         *             also if the channel takes no data, like an non-blocking one without room
+         */
+        public void writeTo(final WritableByteChannel target, final long offset, final long length)
+                throws IOException {
+            final byte[] held;
+            synchronized (this) {
+                held = data;
+            }
+            if (held == null && imageFile != null) {
+                final FileChannel source = new FileInputStream(imageFile).getChannel();
+                try {
+                    final long end = offset + length;
+                    if (offset < 0 || length < 0 || end > source.size()) {
+                        throw new IllegalArgumentException(Debug.values("Range exceeds image", offset, length,
+                                source.size()));
+                    }
+                    for (long position = offset; position < end;) {
+                        final long sent = source.transferTo(position, end - position, target);
+                        if (sent <= 0) {
+                            // no progress, copy the rest so an stalled channel or truncated file ends the loop
+                            copy(source, position, end, target);
+                            break;
+                        }
+                        position += sent;
+                    }
+                } finally {
+                    source.close();
+                }
+                return;
+            }
+            final byte[] bytes = bytes();
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                throw new IllegalArgumentException(Debug.values("Range exceeds image", offset, length, bytes.length));
+            }
+            write(target, ByteBuffer.wrap(bytes, (int) offset, (int) length));
+        }
+
+        /**
+         * copies an part of an file through the heap
+         * 
+         * @param source
+         * @param position
+         * @param end
+         * @param target
+         * @throws IOException
+         */
+        private static void copy(final FileChannel source, final long position, final long end,
+                final WritableByteChannel target) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER, end - position));
+            for (long at = position; at < end;) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - at));
+                final int read = source.read(buffer, at);
+                if (read < 0) {
+                    throw new EOFException(Debug.values("Image truncated", at, end));
+                }
+                buffer.flip();
+                write(target, buffer);
+                at += read;
+            }
+        }
+
+        /**
+         * writes an buffer completely
+         * 
+         * @param target
+         * @param buffer
+         * @throws IOException
+         *             if the channel takes nothing instead of spinning on it
+         */
+        private static void write(final WritableByteChannel target, final ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (target.write(buffer) <= 0) {
+                    throw new IOException(Debug.values("Channel takes no data", target));
+                }
+            }
+        }
+
+        /**
+         * writes the part of the image requested by an http range header
+         * 
+         * @param target
+         * @param range
+         * @throws IOException
+         */
+        public void writeTo(final WritableByteChannel target, final ByteRange range) throws IOException {
+            writeTo(target, range.offset, range.length);
         }
 
         /**
          * reads image data into memory
          * 
-         * @return
+         * @return an copy the caller may modify, use writeTo or getBuffer to avoid it
          * @throws IOException
          */
         public byte[] getData() throws IOException {
-            if (data == null) {
-                checked = false;
-                final OutputStream out = new OutputStream() {
-                    @Override
-                    public void write(final int b) throws IOException {
-                        data.add((byte) b);
-                    }
+            final byte[] bytes = bytes();
+            return Arrays.copyOf(bytes, bytes.length);
+        }
 
-                    @Override
-                    public void write(final byte[] b) throws IOException {
-                        data.add(b);
-                    }
+        /**
+         * gets the image data without copying it
+         * 
+         * @return read only view
+         * @throws IOException
+         */
+        public ByteBuffer getBuffer() throws IOException {
+            return ByteBuffer.wrap(bytes()).asReadOnlyBuffer();
+        }
 
-                    @Override
-                    public void write(final byte[] b, final int off, final int len) throws IOException {
-                        data.add(b, off, len);
-                    }
-                };
+        /**
+         * loads the image data once, the array is shared with the memory tier and every later hit so it must never be
+         * modified
+         * 
+         * @return
+         * @throws IOException
+         */
+        synchronized byte[] bytes() throws IOException {
+            if (data == null) {
                 if (imageFile != null) {
-                    net.xy.codebasel.File.getFile(imageFile, out);
+                    data = readFile(imageFile);
                 } else {
-                    writer.setOutput(ImageIO.createImageOutputStream(out));
-                    writer.write(image);
-                    writer.dispose();
-                    image.flush();
+                    try {
+                        data = EncodeBuffer.encode(image, getFormat(), quality);
+                    } finally {
+                        image.flush();
+                    }
                 }
             }
-            return data.get();
+            return data;
+        }
+
+        /**
+         * reads an whole file in one exact sized array
+         * 
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        private static byte[] readFile(final File file) throws IOException {
+            final DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                final byte[] result = new byte[(int) file.length()];
+                in.readFully(result);
+                return result;
+            } finally {
+                in.close();
+            }
         }
     }
 }
@@ -0,0 +1,526 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * persistent form of the cache index, an snapshot of all entries plus an append only journal of changes since then.
+ * the snapshot gets memory mapped on load, the journal is replayed on top of it. on compaction the journal is rotated
+ * first so changes during writing the new snapshot are kept.
+ * 
+ * <pre>
+ * snapshot: int magic, int version, long count, count * record
+ * journal:  (byte ADD, record | byte REMOVE, long hash)*
+ * record:   long hash, long size, long lastAccess, long contentHash, byte formatLength, formatLength * ascii,
+ *           long sourceModified, long sourceSize, short sourceLength, sourceLength * utf8
+ * </pre>
+ * 
+ * an contentHash of 0 is unknown, an sourceLength of 0 an unknown source.
+ * 
+ * @author xyan
+ * 
+ */
+class IndexJournal {
+    /**
+     * file names below basedir
+     */
+    static final String SNAPSHOT = "index.snapshot";
+    static final String JOURNAL = "index.journal";
+    static final String ROTATED = "index.journal.old";
+    private static final String TEMP = "index.snapshot.tmp";
+    /**
+     * snapshot header
+     */
+    private static final int MAGIC = 0x5859494b; // XYIK
+    private static final int VERSION = 1;
+    /**
+     * journal operations
+     */
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    /**
+     * journal records before compaction is worth it, or half the index if more
+     */
+    private static final int MIN_COMPACT = 100000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * smallest record with an one char format and no source, and the journal record length without format and source
+     */
+    private static final int MIN_RECORD = 52;
+    private static final int ADD_RECORD = 52;
+
+    private final File basedir;
+    private final File snapshot;
+    private final File journal;
+    private final File rotated;
+    /**
+     * open journal, guarded by this
+     */
+    private DataOutputStream out = null;
+    private long records = 0;
+    /**
+     * first write failure, journaling stops after it
+     */
+    private volatile IOException failure = null;
+    /**
+     * last decoded format while loading
+     */
+    private String lastFormat = null;
+    /**
+     * source path buffer while loading, grown on demand
+     */
+    private byte[] path = new byte[256];
+
+    /**
+     * default constructor
+     * 
+     * @param basedir
+     */
+    public IndexJournal(final File basedir) {
+        this.basedir = basedir;
+        snapshot = new File(basedir, SNAPSHOT);
+        journal = new File(basedir, JOURNAL);
+        rotated = new File(basedir, ROTATED);
+    }
+
+    /**
+     * gets an initial index capacity fitting the snapshot
+     * 
+     * @return
+     */
+    public int getCapacity() {
+        final long records = snapshot.length() / MIN_RECORD;
+        return (int) Math.min(Integer.MAX_VALUE / 2, Math.max(16, records + records / 8));
+    }
+
+    /**
+     * loads snapshot and journals into the index
+     * 
+     * @param index
+     * @param repair
+     *            cut partially written records, only allowed for the writing instance
+     * @return false if there was no usable snapshot, index must be scanned then
+     * @throws IOException
+     */
+    public boolean load(final Map<CacheKey, ImgCache.Entry> index, final boolean repair) throws IOException {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        final Map<String, String> formats = new HashMap<String, String>();
+        final Map<String, ImgCache.Stamp> sources = new HashMap<String, ImgCache.Stamp>();
+        final RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try {
+            final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt() != MAGIC) {
+                return false;
+            }
+            if (buffer.getInt() != VERSION) {
+                return false;
+            }
+            final long count = buffer.getLong();
+            final byte[] name = new byte[Byte.MAX_VALUE];
+            for (long i = 0; i < count; i++) {
+                final long hash = buffer.getLong();
+                final long size = buffer.getLong();
+                final long lastAccess = buffer.getLong();
+                final long contentHash = buffer.getLong();
+                final int length = buffer.get();
+                if (length < 1) {
+                    index.clear(); // corrupt
+                    return false;
+                }
+                buffer.get(name, 0, length);
+                final long modified = buffer.getLong();
+                final long sourceSize = buffer.getLong();
+                final int sourceLength = buffer.getShort() & 0xffff;
+                buffer.get(path(sourceLength), 0, sourceLength);
+                put(index, hash, size, lastAccess, contentHash, format(formats, name, length),
+                        stamp(sources, sourceLength, modified, sourceSize));
+            }
+        } catch (final BufferUnderflowException e) {
+            index.clear(); // truncated
+            return false;
+        } finally {
+            file.close();
+        }
+        replay(rotated, index, formats, sources);
+        final long valid = replay(journal, index, formats, sources);
+        if (repair && journal.isFile() && journal.length() != valid) {
+            // cut an partially written last record
+            final RandomAccessFile truncate = new RandomAccessFile(journal, "rw");
+            try {
+                truncate.setLength(valid);
+            } finally {
+                truncate.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * replays an journal
+     * 
+     * @param source
+     * @param index
+     * @param formats
+     * @param sources
+     * @return length of the valid part
+     * @throws IOException
+     */
+    private long replay(final File source, final Map<CacheKey, ImgCache.Entry> index,
+            final Map<String, String> formats, final Map<String, ImgCache.Stamp> sources) throws IOException {
+        if (!source.isFile()) {
+            return 0;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+        long valid = 0;
+        try {
+            final byte[] name = new byte[Byte.MAX_VALUE];
+            while (true) {
+                final int op = in.read();
+                if (op == ADD) {
+                    final long hash = in.readLong();
+                    final long size = in.readLong();
+                    final long lastAccess = in.readLong();
+                    final long contentHash = in.readLong();
+                    final int length = in.readByte();
+                    if (length < 1) {
+                        break; // garbage, cut like an partial record
+                    }
+                    in.readFully(name, 0, length);
+                    final long modified = in.readLong();
+                    final long sourceSize = in.readLong();
+                    final int sourceLength = in.readUnsignedShort();
+                    in.readFully(path(sourceLength), 0, sourceLength);
+                    put(index, hash, size, lastAccess, contentHash, format(formats, name, length),
+                            stamp(sources, sourceLength, modified, sourceSize));
+                    valid += ADD_RECORD + length + sourceLength;
+                } else if (op == REMOVE) {
+                    index.remove(CacheKey.restore(in.readLong(), null));
+                    valid += 9;
+                } else {
+                    break; // end or garbage
+                }
+                records++;
+            }
+        } catch (final EOFException e) {
+            // partially written last record
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    /**
+     * adds an loaded record, the file is resolved lazily
+     * 
+     * @param index
+     * @param hash
+     * @param size
+     * @param lastAccess
+     * @param contentHash
+     * @param format
+     * @param source
+     *            null if unknown
+     */
+    private static void put(final Map<CacheKey, ImgCache.Entry> index, final long hash, final long size,
+            final long lastAccess, final long contentHash, final String format, final ImgCache.Stamp source) {
+        index.put(CacheKey.restore(hash, format), new ImgCache.Entry(null, size, lastAccess, contentHash, source));
+    }
+
+    /**
+     * gets the path buffer large enough for an source
+     * 
+     * @param length
+     * @return
+     */
+    private byte[] path(final int length) {
+        if (path.length < length) {
+            path = new byte[Math.max(length, path.length * 2)];
+        }
+        return path;
+    }
+
+    /**
+     * gets an stamp for the source in the path buffer, the variants of an source share its path and usually the
+     * whole stamp
+     * 
+     * @param sources
+     * @param length
+     * @param modified
+     * @param size
+     * @return null for an unknown source
+     */
+    private ImgCache.Stamp stamp(final Map<String, ImgCache.Stamp> sources, final int length, final long modified,
+            final long size) {
+        if (length == 0) {
+            return null;
+        }
+        final String decoded = new String(path, 0, length, UTF8);
+        final ImgCache.Stamp known = sources.get(decoded);
+        if (known != null && known.modified == modified && known.size == size) {
+            return known;
+        }
+        final ImgCache.Stamp ret = new ImgCache.Stamp(known != null ? known.path : decoded, modified, size);
+        sources.put(ret.path, ret);
+        return ret;
+    }
+
+    /**
+     * gets an shared format string so only a handful exist, the last one is reused without decoding
+     * 
+     * @param formats
+     * @param name
+     * @param length
+     * @return
+     */
+    private String format(final Map<String, String> formats, final byte[] name, final int length) {
+        if (lastFormat != null && lastFormat.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = lastFormat.charAt(i) == name[i];
+            }
+            if (same) {
+                return lastFormat;
+            }
+        }
+        final String format = new String(name, 0, length, ASCII);
+        final String shared = formats.get(format);
+        if (shared != null) {
+            return lastFormat = shared;
+        }
+        formats.put(format, format);
+        return lastFormat = format;
+    }
+
+    /**
+     * opens the journal for appending
+     * 
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+        }
+    }
+
+    /**
+     * appends an added entry
+     * 
+     * @param key
+     * @param entry
+     */
+    public synchronized void added(final CacheKey key, final ImgCache.Entry entry) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(ADD);
+            write(out, key, entry);
+            records++;
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * appends an removed entry
+     * 
+     * @param key
+     */
+    public synchronized void removed(final CacheKey key) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(REMOVE);
+            out.writeLong(key.getHash());
+            records++;
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * writes buffered journal records to disk
+     */
+    public synchronized void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * checks if is the journal long enough to be folded into an new snapshot
+     * 
+     * @param indexSize
+     * @return
+     */
+    public synchronized boolean needsCompaction(final int indexSize) {
+        return out != null && (records > Math.max(MIN_COMPACT, indexSize / 2) || rotated.isFile());
+    }
+
+    /**
+     * writes an new snapshot of the index and drops the journal
+     * 
+     * @param index
+     * @throws IOException
+     */
+    public void compact(final Map<CacheKey, ImgCache.Entry> index) throws IOException {
+        synchronized (this) {
+            if (out == null) {
+                return;
+            }
+            // rotate so changes during the snapshot land in a fresh journal
+            out.close();
+            out = null;
+            if (rotated.isFile()) {
+                // left by an crash before, keep both in order
+                final FileChannel source = new FileInputStream(journal).getChannel();
+                final FileChannel target = new FileOutputStream(rotated, true).getChannel();
+                try {
+                    long position = 0;
+                    while (position < source.size()) {
+                        position += source.transferTo(position, source.size() - position, target);
+                    }
+                } finally {
+                    source.close();
+                    target.close();
+                }
+                journal.delete();
+            } else {
+                Files.move(journal.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            records = 0;
+            open();
+        }
+        final File temp = new File(basedir, TEMP);
+        final FileOutputStream file = new FileOutputStream(temp);
+        try {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(file));
+            // entries can change while iterating, so the count is patched afterwards
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(0);
+            long count = 0;
+            for (final Map.Entry<CacheKey, ImgCache.Entry> entry : index.entrySet()) {
+                write(data, entry.getKey(), entry.getValue());
+                count++;
+            }
+            data.flush();
+            file.getChannel().write(ByteBuffer.allocate(8).putLong(0, count), 8);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        rotated.delete();
+    }
+
+    /**
+     * flushes and closes the journal
+     */
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (final IOException e) {
+            fail(e);
+        }
+        out = null;
+    }
+
+    /**
+     * gets the first write failure
+     * 
+     * @return null if none occured
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * stops journaling after an write failure, the background verification picks up missed entries
+     * 
+     * @param e
+     */
+    private void fail(final IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            out.close();
+        } catch (final IOException ignore) {
+            // already failed
+        }
+        out = null;
+    }
+
+    /**
+     * writes an record
+     * 
+     * @param out
+     * @param key
+     * @param entry
+     * @throws IOException
+     */
+    private static void write(final DataOutputStream out, final CacheKey key, final ImgCache.Entry entry)
+            throws IOException {
+        out.writeLong(key.getHash());
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastAccess);
+        out.writeLong(entry.contentHash);
+        out.writeByte(key.format.length());
+        out.writeBytes(key.format);
+        final ImgCache.Stamp source = entry.source;
+        final byte[] path = source != null ? source.path.getBytes(UTF8) : null;
+        if (path != null && path.length <= 0xffff) {
+            out.writeLong(source.modified);
+            out.writeLong(source.size);
+            out.writeShort(path.length);
+            out.write(path);
+        } else {
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeShort(0);
+        }
+    }
+}
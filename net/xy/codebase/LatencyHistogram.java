@@ -0,0 +1,169 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * lock free histogram of nanosecond latencies in logarithmic buckets, each power of two is split into 8 linear sub
+ * buckets which keeps values within 12.5% like an hdr histogram with one significant digit
+ * 
+ * @author xyan
+ * 
+ */
+public class LatencyHistogram {
+    /**
+     * sub buckets per power of two
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long left, final long right) {
+            return Math.max(left, right);
+        }
+    }, 0);
+
+    /**
+     * records an value, negatives count as 0
+     * 
+     * @param nanos
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * gets the bucket of an value
+     * 
+     * @param value
+     * @return
+     */
+    static int bucket(final long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> exponent - SUB_BITS) & SUB_COUNT - 1;
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * gets the largest value of an bucket
+     * 
+     * @param bucket
+     * @return
+     */
+    static long upper(final int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        final long sub = bucket % SUB_COUNT;
+        final long lower = 1L << exponent | sub << exponent - SUB_BITS;
+        return lower + (1L << exponent - SUB_BITS) - 1;
+    }
+
+    /**
+     * gets an consistent enough copy, concurrent records may be partially contained
+     * 
+     * @return
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    /**
+     * clears all values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * recorded values at one point in time
+     * 
+     * @author xyan
+     * 
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        public Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * gets the mean in nanos
+         * 
+         * @return
+         */
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * gets an upper bound of the value below which an share of all values lies
+         * 
+         * @param quantile
+         *            0-1
+         * @return nanos
+         */
+        public long getPercentile(final double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upper(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return Debug.values("Latency count, mean, p50, p99, max", count, getMean(), getPercentile(0.5),
+                    getPercentile(0.99), max);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.xy.codebase.ImgCache.CachedImage;
+
+/**
+ * bounded in memory tier for encoded images with segmented lru eviction. new entries start in the probation segment
+ * and get promoted to the protected one on their second hit, so one time requests can't flush the hot set. hits are
+ * lockfree, the recency update is skipped when the lock is contended.
+ * 
+ * @author xyan
+ * 
+ */
+public class MemoryCache {
+    /**
+     * part of the budget reserved for the protected segment in percent
+     */
+    private static final int PROTECTED_SHARE = 80;
+
+    /**
+     * one held image
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Entry {
+        public final CacheKey key;
+        public final String name;
+        public final byte[] data;
+        public final long hash;
+        public final long date;
+        /**
+         * segment membership, guarded by lock
+         */
+        public boolean hot = false;
+
+        public Entry(final CacheKey key, final String name, final byte[] data, final long hash, final long date) {
+            this.key = key;
+            this.name = name;
+            this.data = data;
+            this.hash = hash;
+            this.date = date;
+        }
+    }
+
+    /**
+     * maximum amount of bytes held
+     */
+    public final long maxBytes;
+    private final long maxProtected;
+    /**
+     * lookup structure, read without locking
+     */
+    private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+    /**
+     * segments in lru order eldest first, guarded by lock
+     */
+    private final LinkedHashMap<CacheKey, Entry> probation = new LinkedHashMap<CacheKey, Entry>();
+    private final LinkedHashMap<CacheKey, Entry> protect = new LinkedHashMap<CacheKey, Entry>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long size = 0;
+    private long protectedSize = 0;
+    /**
+     * statistics
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * default constructor
+     * 
+     * @param maxBytes
+     */
+    public MemoryCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException(Debug.values("Memory budget must be positive", maxBytes));
+        }
+        this.maxBytes = maxBytes;
+        maxProtected = maxBytes / 100 * PROTECTED_SHARE;
+    }
+
+    /**
+     * gets an held image or null
+     * 
+     * @param key
+     * @return
+     */
+    public CachedImage get(final CacheKey key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (lock.tryLock()) {
+            try {
+                touch(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new CachedImage(entry.name, new Date(entry.date), entry.data, entry.hash);
+    }
+
+    /**
+     * adds an image, images larger than the probation segment are ignored
+     * 
+     * @param key
+     * @param image
+     * @throws IOException
+     */
+    public void put(final CacheKey key, final CachedImage image) throws IOException {
+        if (!fits(image.getSize())) {
+            return; // checked before an disk image gets read
+        }
+        final byte[] data = image.bytes();
+        final Entry entry = new Entry(key, image.name, data, image.getHash(), image.date.getTime());
+        lock.lock();
+        try {
+            unlink(entries.put(key, entry));
+            probation.put(key, entry);
+            size += data.length;
+            while (size > maxBytes) {
+                final LinkedHashMap<CacheKey, Entry> segment = probation.isEmpty() ? protect : probation;
+                final Iterator<Entry> eldest = segment.values().iterator();
+                final Entry victim = eldest.next();
+                eldest.remove();
+                entries.remove(victim.key, victim);
+                size -= victim.data.length;
+                if (victim.hot) {
+                    protectedSize -= victim.data.length;
+                }
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * checks if an image of an size would be held
+     * 
+     * @param size
+     * @return
+     */
+    public boolean fits(final long size) {
+        return size <= maxBytes - maxProtected;
+    }
+
+    /**
+     * checks if an image is held without counting an hit or miss
+     * 
+     * @param key
+     * @return
+     */
+    public boolean contains(final CacheKey key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * removes an image
+     * 
+     * @param key
+     */
+    public void remove(final CacheKey key) {
+        lock.lock();
+        try {
+            unlink(entries.remove(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * promotes or refreshes an entry, must hold lock
+     * 
+     * @param entry
+     */
+    private void touch(final Entry entry) {
+        if (entries.get(entry.key) != entry) {
+            return; // evicted or replaced meanwhile
+        }
+        if (entry.hot) {
+            protect.remove(entry.key);
+            protect.put(entry.key, entry);
+            return;
+        }
+        probation.remove(entry.key);
+        protect.put(entry.key, entry);
+        entry.hot = true;
+        protectedSize += entry.data.length;
+        // demote eldest protected entries back to probation
+        final Iterator<Entry> eldest = protect.values().iterator();
+        while (protectedSize > maxProtected) {
+            final Entry demoted = eldest.next();
+            eldest.remove();
+            demoted.hot = false;
+            protectedSize -= demoted.data.length;
+            probation.put(demoted.key, demoted);
+        }
+    }
+
+    /**
+     * removes an entry from its segment, must hold lock
+     * 
+     * @param entry
+     */
+    private void unlink(final Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        if (entry.hot) {
+            protect.remove(entry.key);
+            protectedSize -= entry.data.length;
+        } else {
+            probation.remove(entry.key);
+        }
+        size -= entry.data.length;
+    }
+
+    /**
+     * gets the amount of hits
+     * 
+     * @return
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * gets the amount of misses
+     * 
+     * @return
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * gets the amount of evicted entries
+     * 
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * gets the amount of held bytes
+     * 
+     * @return
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the amount of held entries
+     * 
+     * @return
+     */
+    public int getCount() {
+        return entries.size();
+    }
+}
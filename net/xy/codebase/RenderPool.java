@@ -0,0 +1,229 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bounded worker pool for renderings. every job reserves its estimated amount of decoded bytes and only starts
+ * while the reservations fit into the budget, others wait in an bounded queue in arrival order. jobs beyond the
+ * queue get rejected, so an burst of misses can neither take all request threads nor the whole heap.
+ * 
+ * @author xyan
+ * 
+ */
+public class RenderPool {
+    /**
+     * default share of the heap for decoded rasters and queue length
+     */
+    private static final int DEFAULT_HEAP_SHARE = 4;
+    private static final int DEFAULT_QUEUED = 1024;
+    /**
+     * for thread names
+     */
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    /**
+     * budget of decoded bytes in flight
+     */
+    public final long maxBytes;
+    /**
+     * jobs waiting for budget before new ones get rejected
+     */
+    public final int maxQueued;
+    private final ThreadPoolExecutor executor;
+    /**
+     * guarded by this
+     */
+    private final ArrayDeque<Job<?>> waiting = new ArrayDeque<Job<?>>();
+    private long reserved = 0;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * default with one thread per core and a quarter of the heap
+     */
+    public RenderPool() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_SHARE,
+                DEFAULT_QUEUED);
+    }
+
+    /**
+     * main constructor
+     * 
+     * @param threads
+     * @param maxBytes
+     * @param maxQueued
+     */
+    public RenderPool(final int threads, final long maxBytes, final int maxQueued) {
+        if (threads < 1 || maxBytes < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException(Debug.values("Invalid render pool", threads, maxBytes, maxQueued));
+        }
+        this.maxBytes = maxBytes;
+        this.maxQueued = maxQueued;
+        final int pool = POOLS.incrementAndGet();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, Debug.values("RenderPool", pool, count.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * runs an job once its bytes fit into the budget, an job larger than the whole budget runs alone
+     * 
+     * @param work
+     * @param bytes
+     *            estimated decoded bytes
+     * @return completes exceptionally with an RejectedExecutionException if saturated
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> work, final long bytes) {
+        final Job<T> job = new Job<T>(work, Math.min(Math.max(1, bytes), maxBytes));
+        synchronized (this) {
+            if (executor.isShutdown()) {
+                job.future.completeExceptionally(new RejectedExecutionException("Render pool is shut down"));
+            } else if (waiting.isEmpty() && reserved + job.bytes <= maxBytes) {
+                reserved += job.bytes;
+                start(job);
+            } else if (waiting.size() < maxQueued) {
+                waiting.add(job);
+            } else {
+                rejected.incrementAndGet();
+                job.future.completeExceptionally(new RejectedExecutionException(Debug.values(
+                        "Render pool saturated", reserved, waiting.size())));
+            }
+        }
+        return job.future;
+    }
+
+    /**
+     * hands an reserved job to the workers, guarded by this
+     * 
+     * @param job
+     */
+    private void start(final Job<?> job) {
+        try {
+            executor.execute(job);
+        } catch (final RejectedExecutionException e) {
+            reserved -= job.bytes;
+            job.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * gives back the bytes of an finished job and starts waiting ones in order as long as they fit
+     * 
+     * @param bytes
+     */
+    private synchronized void release(final long bytes) {
+        reserved -= bytes;
+        while (!waiting.isEmpty() && reserved + waiting.peek().bytes <= maxBytes) {
+            final Job<?> next = waiting.poll();
+            reserved += next.bytes;
+            start(next);
+        }
+    }
+
+    /**
+     * stops accepting jobs, waiting ones get rejected and running ones finish
+     */
+    public void shutdown() {
+        final Job<?>[] dropped;
+        synchronized (this) {
+            executor.shutdown();
+            dropped = waiting.toArray(new Job<?>[waiting.size()]);
+            waiting.clear();
+        }
+        for (final Job<?> job : dropped) {
+            job.future.completeExceptionally(new RejectedExecutionException("Render pool is shut down"));
+        }
+    }
+
+    /**
+     * gets the reserved bytes of running jobs
+     * 
+     * @return
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * gets the amount of jobs waiting for budget
+     * 
+     * @return
+     */
+    public synchronized int getQueued() {
+        return waiting.size();
+    }
+
+    /**
+     * gets the amount of rejected jobs
+     * 
+     * @return
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * an job with its reservation
+     * 
+     * @author xyan
+     * 
+     * @param <T>
+     */
+    private class Job<T> implements Runnable {
+        private final Callable<T> work;
+        public final long bytes;
+        public final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        public Job(final Callable<T> work, final long bytes) {
+            this.work = work;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = work.call();
+            } catch (final Throwable e) {
+                failure = e;
+            } finally {
+                // dependents of the future may run inline, they shouldn't hold the budget
+                release(bytes);
+            }
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * separable resampling engine working on the rasters data arrays without java2d, usable headless. weights are
+ * precomputed per axis, rows are filtered horizontal into an reused float plane and then vertical into the target.
+ * alpha is filtered premultiplied. large targets are filtered in parallel row bands, as every row is computed
+ * independently the result doesn't differ from an single threaded run.
+ * 
+ * @author xyan
+ * 
+ */
+public class Resampler {
+    /**
+     * channels per pixel in the intermediate plane, a r g b
+     */
+    private static final int CHANNELS = 4;
+    /**
+     * target size from which on resampling is split into row bands run on the common fork join pool
+     */
+    public static final long PARALLEL_PIXELS = 4 * 1024 * 1024;
+    /**
+     * rows below which an band isn't split further
+     */
+    private static final int BAND_ROWS = 32;
+    /**
+     * largest intermediate plane kept per thread in floats, larger ones are allocated per call
+     */
+    private static final int MAX_RETAINED = 4 * 1024 * 1024;
+
+    /**
+     * resampling filters with their support radius
+     * 
+     * @author xyan
+     * 
+     */
+    public enum Filter {
+        BOX(0.5) {
+            @Override
+            public double weight(final double x) {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        BILINEAR(1) {
+            @Override
+            public double weight(final double x) {
+                final double abs = Math.abs(x);
+                return abs < 1 ? 1 - abs : 0;
+            }
+        },
+        /**
+         * catmull-rom cubic
+         */
+        BICUBIC(2) {
+            @Override
+            public double weight(final double x) {
+                final double abs = Math.abs(x);
+                if (abs < 1) {
+                    return 1.5 * abs * abs * abs - 2.5 * abs * abs + 1;
+                } else if (abs < 2) {
+                    return -0.5 * abs * abs * abs + 2.5 * abs * abs - 4 * abs + 2;
+                }
+                return 0;
+            }
+        },
+        /**
+         * lanczos with 3 lobes
+         */
+        LANCZOS(3) {
+            @Override
+            public double weight(final double x) {
+                if (x == 0) {
+                    return 1;
+                } else if (x <= -3 || x >= 3) {
+                    return 0;
+                }
+                final double pix = Math.PI * x;
+                return 3 * Math.sin(pix) * Math.sin(pix / 3) / (pix * pix);
+            }
+        };
+
+        /**
+         * radius of the kernel in source pixels when not downscaling
+         */
+        public final double support;
+
+        private Filter(final double support) {
+            this.support = support;
+        }
+
+        /**
+         * kernel value at an distance
+         * 
+         * @param x
+         * @return
+         */
+        public abstract double weight(double x);
+    }
+
+    /**
+     * precomputed contributions of source pixels for every target pixel of one axis, indices are clamped to the
+     * source so no bounds checks are needed while filtering
+     * 
+     * @author xyan
+     * 
+     */
+    static class Axis {
+        public final int taps;
+        public final int[] index;
+        public final float[] weight;
+
+        public Axis(final int source, final int target, final Filter filter) {
+            final double scale = (double) target / source;
+            final double stretch = Math.min(scale, 1); // widen the kernel when downscaling
+            final double support = filter.support / stretch;
+            taps = (int) Math.ceil(support * 2) + 1;
+            index = new int[target * taps];
+            weight = new float[target * taps];
+            for (int i = 0; i < target; i++) {
+                final double center = (i + 0.5) / scale;
+                final int left = (int) Math.floor(center - support);
+                final int offset = i * taps;
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    final int pos = left + t;
+                    final double w = filter.weight((pos + 0.5 - center) * stretch);
+                    index[offset + t] = Math.min(Math.max(pos, 0), source - 1);
+                    weight[offset + t] = (float) w;
+                    sum += w;
+                }
+                if (sum != 0) {
+                    for (int t = 0; t < taps; t++) {
+                        weight[offset + t] /= sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * reusable buffers of an thread
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Scratch {
+        public int[] row = new int[0];
+        public float[] plane = new float[0];
+    }
+
+    /**
+     * an pass over an range of rows
+     * 
+     * @author xyan
+     * 
+     */
+    private interface Rows {
+        public void run(int from, int to);
+    }
+
+    /**
+     * splits an pass into row bands
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Rows rows;
+        private final int from;
+        private final int to;
+
+        public Band(final Rows rows, final int from, final int to) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BAND_ROWS) {
+                rows.run(from, to);
+            } else {
+                final int middle = from + to >>> 1;
+                invokeAll(new Band(rows, from, middle), new Band(rows, middle, to));
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * resamples an region of an image into an new int packed image, in parallel if the target is large
+     * 
+     * @param input
+     * @param region
+     * @param width
+     * @param height
+     * @param filter
+     * @return
+     */
+    public static BufferedImage resample(final BufferedImage input, final Rectangle region, final int width,
+            final int height, final Filter filter) {
+        final boolean large = (long) width * height >= PARALLEL_PIXELS;
+        return resample(input, region, width, height, filter, large ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * resamples an region of an image into an new int packed image
+     * 
+     * @param input
+     * @param region
+     * @param width
+     * @param height
+     * @param filter
+     * @param pool
+     *            splits into row bands run by this pool, null for running single threaded
+     * @return
+     */
+    public static BufferedImage resample(final BufferedImage input, final Rectangle region, final int width,
+            final int height, final Filter filter, final ForkJoinPool pool) {
+        if (width <= 0 || height <= 0 || region.isEmpty()) {
+            throw new IllegalArgumentException(Debug.values("Empty resampling", region, width, height));
+        }
+        final boolean alpha = input.getColorModel().hasAlpha();
+        final BufferedImage ret = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB);
+        final Axis horizontal = new Axis(region.width, width, filter);
+        final Axis vertical = new Axis(region.height, height, filter);
+        final long planeSize = (long) region.height * width * CHANNELS;
+        if (planeSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(Debug.values("Resampling too large", region, width, height));
+        }
+        final float[] plane;
+        if (planeSize > MAX_RETAINED) {
+            plane = new float[(int) planeSize];
+        } else {
+            final Scratch scratch = SCRATCH.get();
+            if (scratch.plane.length < planeSize) {
+                scratch.plane = new float[(int) planeSize];
+            }
+            plane = scratch.plane;
+        }
+        final int[] target = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        if (pool == null) {
+            horizontal(input, region, horizontal, plane, width, 0, region.height);
+            vertical(plane, width, vertical, alpha, target, 0, height);
+            return ret;
+        }
+        pool.invoke(new Band(new Rows() {
+            @Override
+            public void run(final int from, final int to) {
+                horizontal(input, region, horizontal, plane, width, from, to);
+            }
+        }, 0, region.height));
+        pool.invoke(new Band(new Rows() {
+            @Override
+            public void run(final int from, final int to) {
+                vertical(plane, width, vertical, alpha, target, from, to);
+            }
+        }, 0, height));
+        return ret;
+    }
+
+    /**
+     * filters source rows horizontal into the plane
+     * 
+     * @param input
+     * @param region
+     * @param axis
+     * @param plane
+     * @param width
+     * @param from
+     *            first row relative to region
+     * @param to
+     *            exclusive
+     */
+    static void horizontal(final BufferedImage input, final Rectangle region, final Axis axis, final float[] plane,
+            final int width, final int from, final int to) {
+        final Scratch scratch = SCRATCH.get();
+        if (scratch.row.length < region.width) {
+            scratch.row = new int[region.width];
+        }
+        final int[] row = scratch.row;
+        final int taps = axis.taps;
+        final int[] index = axis.index;
+        final float[] weight = axis.weight;
+        for (int y = from; y < to; y++) {
+            readRow(input, region.x, region.y + y, region.width, row);
+            int out = y * width * CHANNELS;
+            for (int x = 0, t = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                for (final int end = t + taps; t < end; t++) {
+                    final int pixel = row[index[t]];
+                    final float w = weight[t];
+                    a += (pixel >>> 24) * w;
+                    r += (pixel >> 16 & 0xff) * w;
+                    g += (pixel >> 8 & 0xff) * w;
+                    b += (pixel & 0xff) * w;
+                }
+                plane[out++] = a;
+                plane[out++] = r;
+                plane[out++] = g;
+                plane[out++] = b;
+            }
+        }
+    }
+
+    /**
+     * filters the plane vertical into target rows
+     * 
+     * @param plane
+     * @param width
+     * @param axis
+     * @param alpha
+     * @param target
+     *            int packed pixels of width stride
+     * @param from
+     *            first target row
+     * @param to
+     *            exclusive
+     */
+    static void vertical(final float[] plane, final int width, final Axis axis, final boolean alpha,
+            final int[] target, final int from, final int to) {
+        final int taps = axis.taps;
+        final int[] index = axis.index;
+        final float[] weight = axis.weight;
+        final int stride = width * CHANNELS;
+        for (int y = from; y < to; y++) {
+            final int first = y * taps;
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                float a = 0, r = 0, g = 0, b = 0;
+                final int column = x * CHANNELS;
+                for (int t = first, end = first + taps; t < end; t++) {
+                    final int pos = index[t] * stride + column;
+                    final float w = weight[t];
+                    a += plane[pos] * w;
+                    r += plane[pos + 1] * w;
+                    g += plane[pos + 2] * w;
+                    b += plane[pos + 3] * w;
+                }
+                final int ia = alpha ? clamp(a) : 0xff;
+                int ir = clamp(r), ig = clamp(g), ib = clamp(b);
+                if (alpha && ia != 0xff) { // back from premultiplied
+                    if (ia == 0) {
+                        ir = ig = ib = 0;
+                    } else {
+                        ir = Math.min(0xff, (ir * 0xff + ia / 2) / ia);
+                        ig = Math.min(0xff, (ig * 0xff + ia / 2) / ia);
+                        ib = Math.min(0xff, (ib * 0xff + ia / 2) / ia);
+                    }
+                }
+                target[out++] = ia << 24 | ir << 16 | ig << 8 | ib;
+            }
+        }
+    }
+
+    /**
+     * rounds and clamps an channel value
+     * 
+     * @param value
+     * @return
+     */
+    private static int clamp(final float value) {
+        final int result = (int) (value + 0.5f);
+        return result < 0 ? 0 : result > 0xff ? 0xff : result;
+    }
+
+    /**
+     * reads an row as premultiplied argb, common types are read from their data arrays
+     * 
+     * @param input
+     * @param x
+     * @param y
+     * @param width
+     * @param row
+     */
+    private static void readRow(final BufferedImage input, final int x, final int y, final int width, final int[] row) {
+        final Raster raster = input.getRaster();
+        final int px = x - raster.getSampleModelTranslateX();
+        final int py = y - raster.getSampleModelTranslateY();
+        switch (input.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_ARGB_PRE: {
+            final DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            final int scan = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            System.arraycopy(buffer.getData(), buffer.getOffset() + py * scan + px, row, 0, width);
+            if (input.getType() == BufferedImage.TYPE_INT_RGB) {
+                for (int i = 0; i < width; i++) {
+                    row[i] |= 0xff000000;
+                }
+            } else if (input.getType() == BufferedImage.TYPE_INT_ARGB) {
+                premultiply(row, width);
+            }
+            return;
+        }
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_4BYTE_ABGR:
+        case BufferedImage.TYPE_4BYTE_ABGR_PRE: {
+            final DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            final ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            final byte[] data = buffer.getData();
+            final int step = model.getPixelStride();
+            final int[] bands = model.getBandOffsets();
+            int pos = buffer.getOffset() + py * model.getScanlineStride() + px * step;
+            final int r = bands[0], g = bands[1], b = bands[2], a = bands.length > 3 ? bands[3] : -1;
+            for (int i = 0; i < width; i++, pos += step) {
+                row[i] = (a < 0 ? 0xff000000 : (data[pos + a] & 0xff) << 24) | (data[pos + r] & 0xff) << 16
+                        | (data[pos + g] & 0xff) << 8 | data[pos + b] & 0xff;
+            }
+            if (input.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+                premultiply(row, width);
+            }
+            return;
+        }
+        default:
+            input.getRGB(x, y, width, 1, row, 0, width);
+            if (input.getColorModel().hasAlpha()) {
+                premultiply(row, width);
+            }
+        }
+    }
+
+    /**
+     * premultiplies argb pixels in place
+     * 
+     * @param row
+     * @param width
+     */
+    private static void premultiply(final int[] row, final int width) {
+        for (int i = 0; i < width; i++) {
+            final int pixel = row[i];
+            final int a = pixel >>> 24;
+            if (a != 0xff) {
+                row[i] = a << 24 | ((pixel >> 16 & 0xff) * a + 127) / 255 << 16
+                        | ((pixel >> 8 & 0xff) * a + 127) / 255 << 8 | ((pixel & 0xff) * a + 127) / 255;
+            }
+        }
+    }
+}
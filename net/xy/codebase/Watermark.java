@@ -0,0 +1,320 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * an mark blended into images. it gets rasterized once per target size into premultiplied pixels with the opacity
+ * already applied, so marking an image is one blend loop over the covered destination pixels. instances are
+ * immutable and can be shared between threads, the mark image must not change afterwards.
+ * 
+ * @author xyan
+ * 
+ */
+public class Watermark {
+    /**
+     * placement inside the target
+     * 
+     * @author xyan
+     * 
+     */
+    public enum Position {
+        TOP_LEFT(0, 0), TOP(1, 0), TOP_RIGHT(2, 0), LEFT(0, 1), CENTER(1, 1), RIGHT(2, 1), BOTTOM_LEFT(0, 2), BOTTOM(
+                1, 2), BOTTOM_RIGHT(2, 2);
+
+        /**
+         * 0 start, 1 centered, 2 end
+         */
+        private final int horizontal;
+        private final int vertical;
+
+        private Position(final int horizontal, final int vertical) {
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        /**
+         * gets the offset of an part inside an length
+         * 
+         * @param align
+         * @param length
+         * @param part
+         * @param margin
+         * @return
+         */
+        private static int offset(final int align, final int length, final int part, final int margin) {
+            switch (align) {
+            case 0:
+                return margin;
+            case 1:
+                return (length - part) / 2;
+            default:
+                return length - part - margin;
+            }
+        }
+    }
+
+    /**
+     * margin share of the smaller target side
+     */
+    private static final double MARGIN = 0.02;
+    /**
+     * prepared rasters kept, all get dropped if exceeded
+     */
+    private static final int MAX_PREPARED = 32;
+    /**
+     * for targets the mark doesn't fit in
+     */
+    private static final Prepared EMPTY = new Prepared(0, 0, 0, 0, new int[0]);
+
+    private final BufferedImage mark;
+    public final Position position;
+    public final float opacity;
+    /**
+     * share of the target width, 0 or less for the natural mark size
+     */
+    public final double scale;
+    /**
+     * hash of the mark pixels and placement
+     */
+    private final long identity;
+    private final Map<Long, Prepared> prepared = new ConcurrentHashMap<Long, Prepared>();
+
+    /**
+     * default
+     * 
+     * @param mark
+     * @param position
+     * @param opacity
+     *            0-1
+     * @param scale
+     *            share of the target width, 0 or less for the natural mark size
+     */
+    public Watermark(final BufferedImage mark, final Position position, final float opacity, final double scale) {
+        if (opacity < 0 || opacity > 1) {
+            throw new IllegalArgumentException(Debug.values("Opacity out of range", opacity));
+        }
+        this.mark = mark;
+        this.position = position;
+        this.opacity = opacity;
+        this.scale = scale;
+        final int width = mark.getWidth();
+        final int height = mark.getHeight();
+        final ByteBuffer identity = ByteBuffer.allocate(24 + width * height * 4);
+        identity.putInt(width).putInt(height).putInt(position.ordinal()).putFloat(opacity).putDouble(scale);
+        identity.asIntBuffer().put(mark.getRGB(0, 0, width, height, null, 0, width));
+        this.identity = XXHash64.hash(identity.array());
+    }
+
+    /**
+     * gets an hash of the mark pixels, position, opacity and scale, equal marks share it
+     * 
+     * @return
+     */
+    public long getIdentity() {
+        return identity;
+    }
+
+    /**
+     * blends the mark into an image
+     * 
+     * @param image
+     */
+    public void apply(final BufferedImage image) {
+        final Prepared mark = prepare(image.getWidth(), image.getHeight());
+        if (mark == EMPTY) {
+            return;
+        }
+        final WritableRaster raster = image.getRaster();
+        final int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_ARGB_PRE) && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            final int scan = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            final int offset = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * scan
+                    - raster.getSampleModelTranslateX();
+            for (int y = 0; y < mark.height; y++) {
+                blend(mark.pixels, y * mark.width, data, offset + (mark.y + y) * scan + mark.x, mark.width, type);
+            }
+        } else {
+            final int[] row = new int[mark.width];
+            for (int y = 0; y < mark.height; y++) {
+                image.getRGB(mark.x, mark.y + y, mark.width, 1, row, 0, mark.width);
+                blend(mark.pixels, y * mark.width, row, 0, mark.width, BufferedImage.TYPE_INT_ARGB);
+                image.setRGB(mark.x, mark.y + y, mark.width, 1, row, 0, mark.width);
+            }
+        }
+    }
+
+    /**
+     * blends premultiplied source pixels over an row of destination ones
+     * 
+     * @param source
+     * @param from
+     * @param target
+     * @param to
+     * @param length
+     * @param type
+     *            int rgb, argb or argb premultiplied
+     */
+    private static void blend(final int[] source, final int from, final int[] target, final int to,
+            final int length, final int type) {
+        for (int i = 0; i < length; i++) {
+            final int s = source[from + i];
+            final int sa = s >>> 24;
+            if (sa == 0) {
+                continue;
+            }
+            final int d = target[to + i];
+            final int inverse = 255 - sa;
+            if (type != BufferedImage.TYPE_INT_ARGB) {
+                // opaque or premultiplied destinations take the plain over operator
+                target[to + i] = sa + div255((d >>> 24) * inverse) << 24
+                        | (s >> 16 & 0xff) + div255((d >> 16 & 0xff) * inverse) << 16
+                        | (s >> 8 & 0xff) + div255((d >> 8 & 0xff) * inverse) << 8 | (s & 0xff)
+                        + div255((d & 0xff) * inverse);
+                continue;
+            }
+            final int da = div255((d >>> 24) * inverse);
+            final int a = sa + da;
+            target[to + i] = a << 24 | unpremultiply(s >> 16 & 0xff, d >> 16 & 0xff, da, a) << 16
+                    | unpremultiply(s >> 8 & 0xff, d >> 8 & 0xff, da, a) << 8
+                    | unpremultiply(s & 0xff, d & 0xff, da, a);
+        }
+    }
+
+    /**
+     * combines an premultiplied source and an straight destination channel into an straight one
+     * 
+     * @param source
+     * @param target
+     * @param weight
+     *            remaining destination alpha
+     * @param alpha
+     *            result alpha
+     * @return
+     */
+    private static int unpremultiply(final int source, final int target, final int weight, final int alpha) {
+        return Math.min(255, ((source + div255(target * weight)) * 255 + alpha / 2) / alpha);
+    }
+
+    /**
+     * rounded division by 255 for products of two channels
+     * 
+     * @param value
+     * @return
+     */
+    private static int div255(final int value) {
+        final int rounded = value + 128;
+        return rounded + (rounded >> 8) >> 8;
+    }
+
+    /**
+     * gets the cached mark raster for an target size
+     * 
+     * @param width
+     * @param height
+     * @return
+     */
+    private Prepared prepare(final int width, final int height) {
+        final Long key = Long.valueOf((long) width << 32 | height);
+        Prepared ret = prepared.get(key);
+        if (ret == null) {
+            ret = rasterize(width, height);
+            if (prepared.size() >= MAX_PREPARED) {
+                prepared.clear();
+            }
+            prepared.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * scales and places the mark for an target size and applies the opacity
+     * 
+     * @param width
+     * @param height
+     * @return
+     */
+    private Prepared rasterize(final int width, final int height) {
+        final int margin = (int) (Math.min(width, height) * MARGIN);
+        // never larger than the target inside its margins
+        final double fit = Math.min((double) (width - 2 * margin) / mark.getWidth(), (double) (height - 2 * margin)
+                / mark.getHeight());
+        final double factor = Math.min(fit, scale > 0 ? width * scale / mark.getWidth() : 1);
+        final int markWidth = (int) Math.round(mark.getWidth() * factor);
+        final int markHeight = (int) Math.round(mark.getHeight() * factor);
+        if (markWidth <= 0 || markHeight <= 0 || opacity == 0) {
+            return EMPTY;
+        }
+        final BufferedImage scaled = new BufferedImage(markWidth, markHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+        final Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(mark, 0, 0, markWidth, markHeight, null);
+        g.dispose();
+        final int[] pixels = ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+        final int alpha = Math.round(opacity * 255);
+        if (alpha < 255) {
+            for (int i = 0; i < pixels.length; i++) {
+                final int p = pixels[i];
+                pixels[i] = div255((p >>> 24) * alpha) << 24 | div255((p >> 16 & 0xff) * alpha) << 16
+                        | div255((p >> 8 & 0xff) * alpha) << 8 | div255((p & 0xff) * alpha);
+            }
+        }
+        return new Prepared(Position.offset(position.horizontal, width, markWidth, margin), Position.offset(
+                position.vertical, height, markHeight, margin), markWidth, markHeight, pixels);
+    }
+
+    @Override
+    public String toString() {
+        return Debug.fields(position, opacity, scale, Long.toHexString(identity));
+    }
+
+    /**
+     * mark raster placed for one target size
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Prepared {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        /**
+         * premultiplied argb with the opacity applied
+         */
+        public final int[] pixels;
+
+        public Prepared(final int x, final int y, final int width, final int height, final int[] pixels) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+}
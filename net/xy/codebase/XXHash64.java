@@ -0,0 +1,122 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * xxhash64 content hash, fast non cryptographic and stable across runs so it can be persisted
+ * 
+ * @author xyan
+ * 
+ */
+final class XXHash64 {
+    private static final long PRIME1 = 0x9e3779b185ebca87L;
+    private static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME3 = 0x165667b19e3779f9L;
+    private static final long PRIME4 = 0x85ebca77c2b2ae63L;
+    private static final long PRIME5 = 0x27d4eb2f165667c5L;
+
+    private XXHash64() {
+    }
+
+    /**
+     * hashes an whole array with seed 0
+     * 
+     * @param data
+     * @return
+     */
+    public static long hash(final byte[] data) {
+        return hash(data, 0, data.length, 0);
+    }
+
+    /**
+     * hashes an part of an array
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @param seed
+     * @return
+     */
+    public static long hash(final byte[] data, final int offset, final int length, final long seed) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        final int end = offset + length;
+        int p = offset;
+        long h;
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            final int limit = end - 32;
+            do {
+                v1 = round(v1, buffer.getLong(p));
+                v2 = round(v2, buffer.getLong(p + 8));
+                v3 = round(v3, buffer.getLong(p + 16));
+                v4 = round(v4, buffer.getLong(p + 24));
+                p += 32;
+            } while (p <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += length;
+        for (; p + 8 <= end; p += 8) {
+            h ^= round(0, buffer.getLong(p));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (p + 4 <= end) {
+            h ^= (buffer.getInt(p) & 0xffffffffL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        for (; p < end; p++) {
+            h ^= (data[p] & 0xff) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * mixes 8 bytes of input into an lane
+     * 
+     * @param acc
+     * @param input
+     * @return
+     */
+    private static long round(final long acc, final long input) {
+        return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+    }
+
+    /**
+     * folds an lane into the hash
+     * 
+     * @param acc
+     * @param lane
+     * @return
+     */
+    private static long merge(final long acc, final long lane) {
+        return (acc ^ round(0, lane)) * PRIME1 + PRIME4;
+    }
+}
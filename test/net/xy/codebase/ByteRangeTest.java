@@ -0,0 +1,107 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * checks of the range header parsing
+ * 
+ * @author xyan
+ * 
+ */
+public class ByteRangeTest {
+    private static final long TOTAL = 1000;
+
+    /**
+     * closed, open and clamped ranges
+     */
+    @Test
+    public void ranges() {
+        assertRange(0, 100, "bytes 0-99/1000", ByteRange.parse("bytes=0-99", TOTAL));
+        assertRange(500, 500, "bytes 500-999/1000", ByteRange.parse("bytes=500-", TOTAL));
+        assertRange(900, 100, "bytes 900-999/1000", ByteRange.parse("bytes=900-5000", TOTAL));
+        assertRange(999, 1, "bytes 999-999/1000", ByteRange.parse("bytes=999-999", TOTAL));
+        assertRange(0, 10, "bytes 0-9/1000", ByteRange.parse("bytes= 0 - 9", TOTAL));
+    }
+
+    /**
+     * the last bytes, at most the whole content
+     */
+    @Test
+    public void suffixRanges() {
+        assertRange(900, 100, "bytes 900-999/1000", ByteRange.parse("bytes=-100", TOTAL));
+        assertRange(0, 1000, "bytes 0-999/1000", ByteRange.parse("bytes=-5000", TOTAL));
+    }
+
+    /**
+     * valid ranges without any byte of the content
+     */
+    @Test
+    public void unsatisfiable() {
+        assertUnsatisfiable(ByteRange.parse("bytes=1000-", TOTAL));
+        assertUnsatisfiable(ByteRange.parse("bytes=2000-3000", TOTAL));
+        assertUnsatisfiable(ByteRange.parse("bytes=-0", TOTAL));
+        final ByteRange empty = ByteRange.parse("bytes=-10", 0);
+        assertFalse(empty.isSatisfiable());
+        assertEquals("bytes */0", empty.getContentRange());
+    }
+
+    /**
+     * malformed or unsupported headers are ignored so the whole content gets sent
+     */
+    @Test
+    public void ignored() {
+        assertNull(ByteRange.parse(null, TOTAL));
+        assertNull(ByteRange.parse("", TOTAL));
+        assertNull(ByteRange.parse("items=0-99", TOTAL));
+        assertNull(ByteRange.parse("bytes=0-9,20-29", TOTAL));
+        assertNull(ByteRange.parse("bytes=100", TOTAL));
+        assertNull(ByteRange.parse("bytes=-", TOTAL));
+        assertNull(ByteRange.parse("bytes=a-9", TOTAL));
+        assertNull(ByteRange.parse("bytes=0-b", TOTAL));
+        assertNull(ByteRange.parse("bytes=99-10", TOTAL));
+    }
+
+    /**
+     * checks an satisfiable range of the total
+     * 
+     * @param offset
+     * @param length
+     * @param contentRange
+     * @param range
+     */
+    private static void assertRange(final long offset, final long length, final String contentRange,
+            final ByteRange range) {
+        assertTrue(range.isSatisfiable());
+        assertEquals(offset, range.offset);
+        assertEquals(length, range.length);
+        assertEquals(TOTAL, range.total);
+        assertEquals(contentRange, range.getContentRange());
+    }
+
+    /**
+     * checks an unsatisfiable range of the total
+     * 
+     * @param range
+     */
+    private static void assertUnsatisfiable(final ByteRange range) {
+        assertFalse(range.isSatisfiable());
+        assertEquals("bytes */1000", range.getContentRange());
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * checks of the variant hash and the cachefile names
+ * 
+ * @author xyan
+ * 
+ */
+public class CacheKeyTest {
+    private static final CacheKey KEY = new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.HIGH, "jpg", 80);
+
+    /**
+     * the hash names persisted cachefiles, so it must never change for the same params
+     */
+    @Test
+    public void hashIsStable() {
+        assertEquals("c17fc1fc5ecf5767.jpg", KEY.getFileName());
+        assertEquals("a22f5c771993fe92.png", new CacheKey("/images/a.jpg", 100, 0, 0, Image.Quality.HIGH, "png", -1)
+                .getFileName());
+    }
+
+    /**
+     * params get normalized before hashing
+     */
+    @Test
+    public void equalParamsAreEqual() {
+        assertKey(KEY, new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.HIGH, "jpg", 80));
+        assertKey(KEY, new CacheKey("/images/a.jpg", 200, 100, -270, Image.Quality.HIGH, "JPG", 80));
+        assertKey(KEY, new CacheKey("/images/a.jpg", 200, 100, 450, Image.Quality.HIGH, "jpg", 80));
+        final CacheKey aspect = new CacheKey("/images/a.jpg", 0, 100, 0, Image.Quality.HIGH, "jpg", -1);
+        assertKey(aspect, new CacheKey("/images/a.jpg", -5, 100, 0, Image.Quality.HIGH, "jpg", -20));
+        assertKey(new CacheKey("/images/a.jpg", 0, 100, 0, Image.Quality.HIGH, "jpg", 100), new CacheKey(
+                "/images/a.jpg", 0, 100, 0, Image.Quality.HIGH, "jpg", 150));
+    }
+
+    /**
+     * every param changes the hash
+     */
+    @Test
+    public void paramsChangeHash() {
+        final CacheKey[] others = new CacheKey[] {
+                new CacheKey("/images/b.jpg", 200, 100, 90, Image.Quality.HIGH, "jpg", 80),
+                new CacheKey("/images/a.jpg", 201, 100, 90, Image.Quality.HIGH, "jpg", 80),
+                new CacheKey("/images/a.jpg", 200, 101, 90, Image.Quality.HIGH, "jpg", 80),
+                new CacheKey("/images/a.jpg", 100, 200, 90, Image.Quality.HIGH, "jpg", 80),
+                new CacheKey("/images/a.jpg", 200, 100, 180, Image.Quality.HIGH, "jpg", 80),
+                new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.LOW, "jpg", 80),
+                new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.HIGH, "png", 80),
+                new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.HIGH, "jpg", 81),
+                new CacheKey("/images/a.jpg", 200, 100, 90, Image.Quality.HIGH, "jpg", -1), KEY.upright(true) };
+        for (int i = 0; i < others.length; i++) {
+            assertFalse(others[i].toString(), KEY.equals(others[i]));
+            for (int j = i + 1; j < others.length; j++) {
+                assertFalse(others[j].toString(), others[i].equals(others[j]));
+            }
+        }
+    }
+
+    /**
+     * keys restored from their cachefile names match the fresh ones
+     */
+    @Test
+    public void fileNameRoundTrip() {
+        final String name = KEY.getFileName();
+        assertEquals(16 + 4, name.length());
+        assertEquals(String.format("%016x.jpg", KEY.getHash()), name);
+        final CacheKey parsed = CacheKey.parse(name);
+        assertKey(KEY, parsed);
+        assertEquals("jpg", parsed.format);
+        assertEquals(name, parsed.getFileName());
+        final char s = File.separatorChar;
+        assertEquals(name.substring(0, 2) + s + name.substring(2, 4) + s + name, KEY.getPath());
+        assertEquals(KEY.getPath(), parsed.getPath());
+        assertKey(KEY, CacheKey.parse(name.toUpperCase().replace("JPG", "jpg")));
+    }
+
+    /**
+     * names of other files aren't taken for cachefiles
+     */
+    @Test
+    public void parseRejectsOtherNames() {
+        assertNull(CacheKey.parse("0123456789abcdef."));
+        assertNull(CacheKey.parse("0123456789abcde.jpg"));
+        assertNull(CacheKey.parse("0123456789abcdeg.jpg"));
+        assertNull(CacheKey.parse("0123456789abcdef_jpg"));
+        assertNull(CacheKey.parse("0123456789abcdef.jpg.tmp"));
+        assertNull(CacheKey.parse("index.snapshot"));
+    }
+
+    /**
+     * checks equality and the hash code contract
+     * 
+     * @param expected
+     * @param actual
+     */
+    private static void assertKey(final CacheKey expected, final CacheKey actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.hashCode(), actual.hashCode());
+    }
+}
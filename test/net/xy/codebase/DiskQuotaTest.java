@@ -0,0 +1,176 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * checks of the quota and its free space watermark
+ * 
+ * @author xyan
+ * 
+ */
+public class DiskQuotaTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ImgCache cache;
+    private File basedir;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new ImgCache(folder.newFolder("cache"));
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    /**
+     * the cache turns readonly below the low watermark and writable again once free space recovered
+     */
+    @Test
+    public void lowSpaceRecovers() {
+        new DiskQuota(0, 0, Long.MAX_VALUE / 2).enforce(cache);
+        assertTrue(cache.isReadOnly());
+        // same volume, but now far above the watermark and its hysteresis
+        new DiskQuota(0, 0, 1).enforce(cache);
+        assertFalse(cache.isReadOnly());
+    }
+
+    /**
+     * free space between the watermark and its hysteresis keeps the current state
+     */
+    @Test
+    public void lowSpaceHysteresis() {
+        final long free = cache.basedir.getUsableSpace();
+        // 10% below the free space, which is inside the 25% hysteresis
+        final DiskQuota near = new DiskQuota(0, 0, free - free / 10);
+        near.enforce(cache);
+        assertFalse(cache.isReadOnly());
+        new DiskQuota(0, 0, Long.MAX_VALUE / 2).enforce(cache);
+        assertTrue(cache.isReadOnly());
+        near.enforce(cache);
+        assertTrue(cache.isReadOnly());
+        new DiskQuota(0, 0, free / 2).enforce(cache);
+        assertFalse(cache.isReadOnly());
+    }
+
+    /**
+     * an exceeded entry quota evicts the least recently accessed files down to 90% of it
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void entryQuotaEvictsEldest() throws IOException {
+        final List<CacheKey> keys = fill(20);
+        final ImgCache filled = new ImgCache(basedir);
+        try {
+            final DiskQuota quota = new DiskQuota(0, 10, 0);
+            assertTrue(quota.isExceeded(filled));
+            quota.enforce(filled);
+            assertEquals(9, filled.getCount());
+            assertEquals(11, quota.getEvictions());
+            assertEquals(new HashSet<CacheKey>(keys.subList(11, 20)), keys(filled));
+            assertFalse(quota.isExceeded(filled));
+        } finally {
+            filled.close();
+        }
+    }
+
+    /**
+     * an exceeded byte quota evicts the least recently accessed files down to 90% of it
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void byteQuotaEvictsEldest() throws IOException {
+        final List<CacheKey> keys = fill(20);
+        final ImgCache filled = new ImgCache(basedir);
+        try {
+            final long size = filled.getTotalBytes() / 20;
+            // rounded up so 90% of the quota hold nine files exactly
+            final DiskQuota quota = new DiskQuota((size * 10 + 99) / 100 * 100, 0, 0);
+            quota.enforce(filled);
+            assertEquals(new HashSet<CacheKey>(keys.subList(11, 20)), keys(filled));
+            assertEquals(size * 9, filled.getTotalBytes());
+        } finally {
+            filled.close();
+        }
+    }
+
+    /**
+     * writes cachefiles of equal size, accessed in the order of the returned keys
+     * 
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    private List<CacheKey> fill(final int count) throws IOException {
+        basedir = folder.newFolder("filled");
+        final ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "jpg", jpg);
+        final long now = System.currentTimeMillis();
+        final List<CacheKey> ret = new ArrayList<CacheKey>(count);
+        for (int i = 0; i < count; i++) {
+            final CacheKey key = new CacheKey("/images/" + i + ".jpg", 100, 0, 0, Image.Quality.HIGH, "jpg", -1);
+            final File file = new File(basedir, key.getPath());
+            file.getParentFile().mkdirs();
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                jpg.writeTo(out);
+            } finally {
+                out.close();
+            }
+            file.setLastModified(now - (count - i) * 60000L);
+            ret.add(key);
+        }
+        return ret;
+    }
+
+    /**
+     * gets the keys held by an cache
+     * 
+     * @param cache
+     * @return
+     */
+    private static Set<CacheKey> keys(final ImgCache cache) {
+        final Set<CacheKey> ret = new HashSet<CacheKey>();
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : cache.entries()) {
+            ret.add(entry.getKey());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * checks of the format negotiation. png stands in for an smaller format as its writer is always installed, avif
+ * for one without writer
+ * 
+ * @author xyan
+ * 
+ */
+public class FormatNegotiatorTest {
+    private final FormatNegotiator negotiator = new FormatNegotiator("avif", "PNG");
+
+    /**
+     * explicitly accepted preferred formats are chosen
+     */
+    @Test
+    public void explicit() {
+        assertEquals("jpg", negotiator.negotiate(null, "jpg"));
+        assertEquals("jpg", negotiator.negotiate("", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/png", "jpg"));
+        assertEquals("png", negotiator.negotiate("text/html, IMAGE/PNG, image/jpeg", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/png", "png"));
+        assertEquals("jpg", negotiator.negotiate("image/avif", "jpg"));
+    }
+
+    /**
+     * the source format wins if its quality is higher, ties go to the preferred one
+     */
+    @Test
+    public void qualities() {
+        assertEquals("jpg", negotiator.negotiate("image/png;q=0.5, image/jpeg", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/png;q=0.5, image/jpeg;q=0.5", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/jpeg;q=0.4, image/png; q=0.5", "jpg"));
+        assertEquals("jpg", negotiator.negotiate("image/png;q=0", "jpg"));
+        assertEquals("jpg", negotiator.negotiate("image/png;q=invalid", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/png;level=1;q=0.9, image/jpeg;q=0.8", "jpg"));
+    }
+
+    /**
+     * wildcards rate the source format but never select an preferred one
+     */
+    @Test
+    public void wildcards() {
+        assertEquals("jpg", negotiator.negotiate("*/*", "jpg"));
+        assertEquals("jpg", negotiator.negotiate("image/*", "jpg"));
+        assertEquals("png", negotiator.negotiate("image/png;q=0.6, image/*;q=0.5", "jpg"));
+        assertEquals("jpg", negotiator.negotiate("image/png;q=0.4, image/*;q=0.5", "jpg"));
+        // the image range is more specific than any
+        assertEquals("png", negotiator.negotiate("image/png;q=0.4, image/*;q=0.3, */*", "jpg"));
+        assertEquals("jpg", negotiator.negotiate("image/png;q=0.4, image/jpeg;q=0.9, image/*;q=0.3", "jpg"));
+    }
+
+    /**
+     * content types of formats with and without writer
+     */
+    @Test
+    public void mimeTypes() {
+        assertEquals("image/jpeg", FormatNegotiator.getMimeType("jpg"));
+        assertEquals("image/png", FormatNegotiator.getMimeType("png"));
+        assertEquals("image/avif", FormatNegotiator.getMimeType("avif"));
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * checks of the lossless quarter turns and the exif orientations
+ * 
+ * @author xyan
+ * 
+ */
+public class ImageTest {
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+    /**
+     * packed int and interleaved byte rasters
+     */
+    private static final int[] TYPES = new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+
+    /**
+     * every orientation gets upright by its exif definition
+     */
+    @Test
+    public void orient() {
+        for (final int type : TYPES) {
+            final BufferedImage input = numbered(WIDTH, HEIGHT, type);
+            for (int orientation = 1; orientation <= 8; orientation++) {
+                assertUpright(input, orientation, Image.orient(input, orientation));
+            }
+        }
+    }
+
+    /**
+     * unknown orientations keep the image
+     */
+    @Test
+    public void orientUnknown() {
+        final BufferedImage input = numbered(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        assertSame(input, Image.orient(input, 0));
+        assertSame(input, Image.orient(input, 1));
+        assertSame(input, Image.orient(input, 9));
+    }
+
+    /**
+     * quarter turns are taken modulo four, clockwise like an orientation of 6
+     */
+    @Test
+    public void turn() {
+        final BufferedImage input = numbered(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        assertSame(input, Image.turn(input, 0, false));
+        assertSame(input, Image.turn(input, 4, false));
+        assertUpright(input, 6, Image.turn(input, 1, false));
+        assertUpright(input, 6, Image.turn(input, -3, false));
+        assertUpright(input, 3, Image.turn(input, 2, false));
+        assertUpright(input, 8, Image.turn(input, 3, false));
+        assertUpright(input, 2, Image.turn(input, 0, true));
+        assertUpright(input, 4, Image.turn(input, 2, true));
+    }
+
+    /**
+     * subimages share the raster of their parent at an offset
+     */
+    @Test
+    public void turnSubimage() {
+        for (final int type : TYPES) {
+            final BufferedImage parent = numbered(WIDTH + 4, HEIGHT + 3, type);
+            final BufferedImage input = parent.getSubimage(3, 2, WIDTH, HEIGHT);
+            for (int orientation = 2; orientation <= 8; orientation++) {
+                assertUpright(input, orientation, Image.orient(input, orientation));
+            }
+        }
+    }
+
+    /**
+     * checks each pixel against its position defined by the exif orientation
+     * 
+     * @param input
+     *            as stored
+     * @param orientation
+     * @param upright
+     */
+    private static void assertUpright(final BufferedImage input, final int orientation, final BufferedImage upright) {
+        final int w = input.getWidth();
+        final int h = input.getHeight();
+        final boolean swap = orientation >= 5;
+        assertEquals(swap ? h : w, upright.getWidth());
+        assertEquals(swap ? w : h, upright.getHeight());
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                final int ux, uy;
+                switch (orientation) {
+                case 2:
+                    ux = w - 1 - x;
+                    uy = y;
+                    break;
+                case 3:
+                    ux = w - 1 - x;
+                    uy = h - 1 - y;
+                    break;
+                case 4:
+                    ux = x;
+                    uy = h - 1 - y;
+                    break;
+                case 5:
+                    ux = y;
+                    uy = x;
+                    break;
+                case 6:
+                    ux = h - 1 - y;
+                    uy = x;
+                    break;
+                case 7:
+                    ux = h - 1 - y;
+                    uy = w - 1 - x;
+                    break;
+                case 8:
+                    ux = y;
+                    uy = w - 1 - x;
+                    break;
+                default:
+                    ux = x;
+                    uy = y;
+                }
+                assertEquals("orientation " + orientation + " at " + x + "," + y, input.getRGB(x, y), upright
+                        .getRGB(ux, uy));
+            }
+        }
+    }
+
+    /**
+     * creates an image with distinct pixels
+     * 
+     * @param width
+     * @param height
+     * @param type
+     * @return
+     */
+    private static BufferedImage numbered(final int width, final int height, final int type) {
+        final BufferedImage ret = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ret.setRGB(x, y, 0xff000000 | (y * width + x) * 0x0a0b0c);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * checks of the concurrent cache paths
+ * 
+ * @author xyan
+ * 
+ */
+public class ImgCacheTest {
+    /**
+     * concurrent requests per key
+     */
+    private static final int THREADS = 16;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private ImgCache cache;
+    private CacheStatistics statistics;
+
+    @Before
+    public void setUp() throws IOException {
+        source = folder.newFile("source.jpg");
+        writeNoise(source, 1600, 1200, 1);
+        cache = new ImgCache(folder.newFolder("cache"));
+        statistics = new CacheStatistics();
+        cache.setMetrics(statistics);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    /**
+     * many threads missing the same key at once render it exactly once and all get the same image
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void concurrentMissesRenderOnce() throws Exception {
+        final CacheKey key = new CacheKey(source.getPath(), 200, 0, 0, Image.Quality.HIGH, "jpg", -1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<ImgCache.CachedImage>> results = new ArrayList<Future<ImgCache.CachedImage>>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(threads.submit(new Callable<ImgCache.CachedImage>() {
+                    @Override
+                    public ImgCache.CachedImage call() throws Exception {
+                        start.await();
+                        return cache.get(key);
+                    }
+                }));
+            }
+            start.countDown();
+            final String etag = results.get(0).get(1, TimeUnit.MINUTES).getETag();
+            for (final Future<ImgCache.CachedImage> result : results) {
+                assertEquals(etag, result.get(1, TimeUnit.MINUTES).getETag());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, renders());
+    }
+
+    /**
+     * asynchronous misses of the same key share one rendering as well
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void concurrentAsyncMissesRenderOnce() throws Exception {
+        final List<CompletableFuture<ImgCache.CachedImage>> results =
+                new ArrayList<CompletableFuture<ImgCache.CachedImage>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(cache.getAsync(source.getPath(), 300, 0, 0, -1));
+        }
+        for (final CompletableFuture<ImgCache.CachedImage> result : results) {
+            assertNotNull(result.get(1, TimeUnit.MINUTES));
+        }
+        assertEquals(1, renders());
+    }
+
+    /**
+     * an readonly instance drops stale variants without deleting the files of the writing one
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void readOnlyRevalidationKeepsFiles() throws Exception {
+        cache.get(source.getPath(), 100, 0, 0, -1);
+        cache.close();
+        final int files = countFiles(cache.basedir);
+        final ImgCache readOnly = new ImgCache(cache.basedir, true);
+        try {
+            readOnly.setRevalidate(0);
+            assertEquals(1, readOnly.getCount());
+            writeNoise(source, 1600, 1200, 2);
+            source.setLastModified(source.lastModified() + 10000);
+            readOnly.get(source.getPath(), 100, 0, 0, -1);
+            assertEquals(0, readOnly.getCount());
+            assertEquals(files, countFiles(cache.basedir));
+        } finally {
+            readOnly.close();
+        }
+        cache = new ImgCache(cache.basedir);
+    }
+
+    /**
+     * callers modifying the data of an memory hit don't change what later hits get
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void memoryHitsAreCopied() throws Exception {
+        cache.setMemoryCache(new MemoryCache(16 * 1024 * 1024));
+        final CacheKey key = new CacheKey(source.getPath(), 200, 0, 0, Image.Quality.HIGH, "jpg", -1);
+        final byte[] expected = cache.get(key).getData().clone();
+        while (cache.getCount() == 0) {
+            Thread.sleep(10); // served from memory once written
+        }
+        final byte[] modified = cache.get(key).getData();
+        Arrays.fill(modified, (byte) 0);
+        assertArrayEquals(expected, cache.get(key).getData());
+        assertTrue(cache.get(key).getBuffer().isReadOnly());
+    }
+
+    /**
+     * marked and unmarked renderings of the same variant are cached apart, equal marks share their variants
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void watermarkIsKeyed() throws Exception {
+        final CacheKey key = new CacheKey(source.getPath(), 200, 0, 0, Image.Quality.HIGH, "jpg", -1);
+        final String plain = cache.get(key).getETag();
+        final BufferedImage mark = new BufferedImage(40, 20, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < mark.getHeight(); y++) {
+            for (int x = 0; x < mark.getWidth(); x++) {
+                mark.setRGB(x, y, 0xffffffff);
+            }
+        }
+        final Watermark watermark = new Watermark(mark, Watermark.Position.BOTTOM_RIGHT, 1f, 0.5);
+        cache.setWatermark(watermark);
+        final String marked = cache.get(key).getETag();
+        assertFalse(plain.equals(marked));
+        assertEquals(2, renders());
+        cache.setWatermark(null);
+        assertEquals(plain, cache.get(key).getETag());
+        assertEquals(marked, cache.get(key.mark(watermark)).getETag());
+        assertEquals(2, renders());
+
+        final BufferedImage copy = new BufferedImage(40, 20, BufferedImage.TYPE_INT_ARGB);
+        copy.setData(mark.getData());
+        assertEquals(key.mark(watermark), key.mark(new Watermark(copy, Watermark.Position.BOTTOM_RIGHT, 1f, 0.5)));
+        assertFalse(key.mark(watermark).equals(
+                key.mark(new Watermark(mark, Watermark.Position.BOTTOM_RIGHT, 0.5f, 0.5))));
+        assertFalse(key.mark(watermark).equals(
+                key.mark(new Watermark(mark, Watermark.Position.TOP_LEFT, 1f, 0.5))));
+        assertEquals(key.getHash(), key.mark(null).getHash());
+    }
+
+    /**
+     * sources get turned upright only when enabled and oriented variants don't replace the ones rendered as stored
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void orientingIsOptIn() throws Exception {
+        final File turned = folder.newFile("turned.jpg");
+        writeNoise(turned, 400, 200, 4);
+        final byte[] stored = Files.readAllBytes(turned.toPath());
+        // exif app1 segment with orientation 6, the upright image is turned clockwise
+        final byte[] exif = { (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0,
+                8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 6, 0, 0, 0, 0, 0, 0 };
+        final FileOutputStream out = new FileOutputStream(turned);
+        try {
+            // behind the jfif segment, which has to come first
+            final int app0 = 4 + ((stored[4] & 0xff) << 8 | stored[5] & 0xff);
+            out.write(stored, 0, app0);
+            out.write(exif);
+            out.write(stored, app0, stored.length - app0);
+        } finally {
+            out.close();
+        }
+        final CacheKey key = new CacheKey(turned.getPath(), 100, 0, 0, Image.Quality.HIGH, "jpg", -1);
+        final ImgCache.CachedImage plain = cache.get(key);
+        assertEquals(50, ImageIO.read(new ByteArrayInputStream(plain.getData())).getHeight());
+        cache.setOrienting(true);
+        final ImgCache.CachedImage upright = cache.get(key);
+        assertFalse(plain.getETag().equals(upright.getETag()));
+        assertEquals(200, ImageIO.read(new ByteArrayInputStream(upright.getData())).getHeight());
+        cache.setOrienting(false);
+        assertEquals(plain.getETag(), cache.get(key).getETag());
+        assertEquals(key.getHash(), key.upright(false).getHash());
+    }
+
+    /**
+     * an change event failing to purge doesn't stop the watcher from handling the following ones
+     * 
+     * @throws Exception
+     */
+    @Test(timeout = 60000)
+    public void watchingSurvivesFailures() throws Exception {
+        final File broken = folder.newFile("broken.jpg");
+        final CountDownLatch purged = new CountDownLatch(1);
+        final ImgCache watching = new ImgCache(folder.newFolder("watched")) {
+            @Override
+            public int invalidate(final String path) {
+                if (path.equals(broken.getPath())) {
+                    throw new IllegalStateException("broken");
+                }
+                final int ret = super.invalidate(path);
+                if (path.equals(source.getPath())) {
+                    purged.countDown();
+                }
+                return ret;
+            }
+        };
+        try {
+            final CacheStatistics statistics = new CacheStatistics();
+            watching.setMetrics(statistics);
+            watching.get(new CacheKey(source.getPath(), 200, 0, 0, Image.Quality.HIGH, "jpg", -1));
+            watching.setWatching(true);
+            writeNoise(broken, 10, 10, 2);
+            while (statistics.getCount(CacheMetrics.Event.WATCH_FAILURE) == 0) {
+                Thread.sleep(10);
+            }
+            writeNoise(source, 1600, 1200, 3);
+            assertTrue(purged.await(30, TimeUnit.SECONDS));
+        } finally {
+            watching.close();
+        }
+    }
+
+    /**
+     * disk images reach channels which take only a few bytes per write completely
+     * 
+     * @throws IOException
+     */
+    @Test(timeout = 60000)
+    public void writeToTrickles() throws IOException {
+        final byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        final File file = folder.newFile("0123456789abcdef.jpg");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        final Trickle target = new Trickle(7, Integer.MAX_VALUE);
+        new ImgCache.CachedImage(file).writeTo(target);
+        assertArrayEquals(data, target.written());
+    }
+
+    /**
+     * an channel which stops taking data fails the write instead of spinning on it
+     * 
+     * @throws IOException
+     */
+    @Test(timeout = 60000, expected = IOException.class)
+    public void writeToStalls() throws IOException {
+        final File file = folder.newFile("0123456789abcdef.jpg");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[10000]);
+        } finally {
+            out.close();
+        }
+        new ImgCache.CachedImage(file).writeTo(new Trickle(512, 1024));
+    }
+
+    /**
+     * channel taking an limited amount per write and in total, like an non-blocking one
+     * 
+     * @author xyan
+     * 
+     */
+    private static class Trickle implements WritableByteChannel {
+        private final int chunk;
+        private int room;
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        public Trickle(final int chunk, final int room) {
+            this.chunk = chunk;
+            this.room = room;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int length = Math.min(Math.min(chunk, room), src.remaining());
+            for (int i = 0; i < length; i++) {
+                written.write(src.get());
+            }
+            room -= length;
+            return length;
+        }
+
+        public byte[] written() {
+            return written.toByteArray();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing held
+        }
+    }
+
+    /**
+     * gets the amount of renderings, each decodes the source once
+     * 
+     * @return
+     */
+    private long renders() {
+        return statistics.getSnapshot(CacheMetrics.Stage.DECODE).count;
+    }
+
+    /**
+     * writes an noise image which doesn't compress below the minimum source size
+     * 
+     * @param file
+     * @param width
+     * @param height
+     * @param seed
+     * @throws IOException
+     */
+    private static void writeNoise(final File file, final int width, final int height, final long seed)
+            throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ImageIO.write(image, "jpg", file);
+    }
+
+    /**
+     * counts the cachefiles below an directory
+     * 
+     * @param dir
+     * @return
+     */
+    private static int countFiles(final File dir) {
+        int ret = 0;
+        for (final File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                ret += countFiles(file);
+            } else if (CacheKey.parse(file.getName()) != null) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+}
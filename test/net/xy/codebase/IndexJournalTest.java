@@ -0,0 +1,205 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * checks of the persisted index
+ * 
+ * @author xyan
+ * 
+ */
+public class IndexJournalTest {
+    /**
+     * offset of the first format length in an snapshot, behind header and four longs of the record
+     */
+    private static final int SNAPSHOT_FORMAT = 16 + 32;
+    /**
+     * offset of the format length in an journal record, behind op and four longs
+     */
+    private static final int JOURNAL_FORMAT = 1 + 32;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("cache");
+    }
+
+    /**
+     * the journal is replayed in order on top of the snapshot
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void journalIsReplayed() throws IOException {
+        final Map<CacheKey, ImgCache.Entry> index = index(0, 3);
+        final IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+        journal.compact(index);
+        final Map<CacheKey, ImgCache.Entry> added = index(3, 2);
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : added.entrySet()) {
+            journal.added(entry.getKey(), entry.getValue());
+        }
+        final CacheKey removed = index(1, 1).keySet().iterator().next();
+        journal.removed(removed);
+        journal.close();
+        index.putAll(added);
+        index.remove(removed);
+        assertLoaded(index);
+    }
+
+    /**
+     * compaction folds the journal into an new snapshot holding the same index
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void compactionFoldsJournal() throws IOException {
+        final Map<CacheKey, ImgCache.Entry> index = index(0, 3);
+        final IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+        journal.compact(index);
+        final Map<CacheKey, ImgCache.Entry> added = index(3, 4);
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : added.entrySet()) {
+            journal.added(entry.getKey(), entry.getValue());
+        }
+        journal.flush();
+        assertTrue(new File(dir, IndexJournal.JOURNAL).length() > 0);
+        index.putAll(added);
+        journal.compact(index);
+        journal.close();
+        assertEquals(0, new File(dir, IndexJournal.JOURNAL).length());
+        assertFalse(new File(dir, IndexJournal.ROTATED).exists());
+        assertLoaded(index);
+    }
+
+    /**
+     * an corrupt snapshot is reported unusable instead of failing, so the cache rescans its directory
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void corruptSnapshotIsUnusable() throws IOException {
+        final IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+        journal.compact(index(0, 3));
+        journal.close();
+        patch(new File(dir, IndexJournal.SNAPSHOT), SNAPSHOT_FORMAT, 0x90);
+        final Map<CacheKey, ImgCache.Entry> loaded = new HashMap<CacheKey, ImgCache.Entry>();
+        assertFalse(new IndexJournal(dir).load(loaded, false));
+        assertTrue(loaded.isEmpty());
+    }
+
+    /**
+     * an corrupt journal record ends the replay and gets cut by the writing instance
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void corruptJournalIsCut() throws IOException {
+        final IndexJournal journal = new IndexJournal(dir);
+        journal.open();
+        journal.compact(index(0, 3));
+        final Map<CacheKey, ImgCache.Entry> added = index(3, 2);
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : added.entrySet()) {
+            journal.added(entry.getKey(), entry.getValue());
+        }
+        journal.close();
+        final File file = new File(dir, IndexJournal.JOURNAL);
+        final long first = file.length() / 2;
+        patch(file, first + JOURNAL_FORMAT, 0x90);
+        final Map<CacheKey, ImgCache.Entry> loaded = new HashMap<CacheKey, ImgCache.Entry>();
+        assertTrue(new IndexJournal(dir).load(loaded, true));
+        assertEquals(4, loaded.size());
+        assertEquals(first, file.length());
+    }
+
+    /**
+     * builds entries of distinct sources
+     * 
+     * @param from
+     * @param count
+     * @return
+     */
+    static Map<CacheKey, ImgCache.Entry> index(final int from, final int count) {
+        final Map<CacheKey, ImgCache.Entry> ret = new HashMap<CacheKey, ImgCache.Entry>();
+        for (int i = from; i < from + count; i++) {
+            final String source = "/images/" + i + ".jpg";
+            ret.put(new CacheKey(source, 100, 0, 0, Image.Quality.HIGH, "jpg", -1), new ImgCache.Entry(null,
+                    1000 + i, 2000 + i, 3000 + i, new ImgCache.Stamp(source, 4000 + i, 5000 + i)));
+        }
+        return ret;
+    }
+
+    /**
+     * loads the index from disk and compares it with the expected one
+     * 
+     * @param expected
+     * @throws IOException
+     */
+    private void assertLoaded(final Map<CacheKey, ImgCache.Entry> expected) throws IOException {
+        final Map<CacheKey, ImgCache.Entry> loaded = new HashMap<CacheKey, ImgCache.Entry>();
+        assertTrue(new IndexJournal(dir).load(loaded, false));
+        assertEquals(expected.size(), loaded.size());
+        for (final Map.Entry<CacheKey, ImgCache.Entry> entry : expected.entrySet()) {
+            final ImgCache.Entry restored = loaded.get(entry.getKey());
+            assertNotNull(restored);
+            assertEquals(entry.getValue().size, restored.size);
+            assertEquals(entry.getValue().lastAccess, restored.lastAccess);
+            assertEquals(entry.getValue().contentHash, restored.contentHash);
+            assertEquals(entry.getValue().source.path, restored.source.path);
+            assertEquals(entry.getValue().source.modified, restored.source.modified);
+            assertEquals(entry.getValue().source.size, restored.source.size);
+        }
+        for (final CacheKey key : loaded.keySet()) {
+            assertEquals("jpg", key.format);
+        }
+    }
+
+    /**
+     * overwrites an byte of an file
+     * 
+     * @param file
+     * @param position
+     * @param value
+     * @throws IOException
+     */
+    private static void patch(final File file, final long position, final int value) throws IOException {
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(position);
+            out.write(value);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * checks of the segmented lru memory tier
+ * 
+ * @author xyan
+ * 
+ */
+public class MemoryCacheTest {
+    /**
+     * budget for ten images, eight of them protected
+     */
+    private static final int BUDGET = 1000;
+    private static final int IMAGE = 100;
+
+    private MemoryCache memory;
+
+    @Before
+    public void setUp() {
+        memory = new MemoryCache(BUDGET);
+    }
+
+    /**
+     * held images are served with their data and counted
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void hitsAndMisses() throws IOException {
+        memory.put(key(0), image(0, IMAGE));
+        final ImgCache.CachedImage hit = memory.get(key(0));
+        assertArrayEquals(image(0, IMAGE).getData(), hit.getData());
+        assertEquals(image(0, IMAGE).getETag(), hit.getETag());
+        assertNull(memory.get(key(1)));
+        assertEquals(1, memory.getHits());
+        assertEquals(1, memory.getMisses());
+        assertTrue(memory.contains(key(0)));
+        assertEquals(1, memory.getHits());
+    }
+
+    /**
+     * an image hit twice survives any amount of one time images
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void secondHitProtects() throws IOException {
+        memory.put(key(0), image(0, IMAGE));
+        memory.get(key(0));
+        for (int i = 1; i <= 50; i++) {
+            memory.put(key(i), image(i, IMAGE));
+        }
+        assertTrue(memory.contains(key(0)));
+        assertEquals(BUDGET, memory.getSize());
+        assertEquals(10, memory.getCount());
+        assertEquals(41, memory.getEvictions());
+        // the one time images got evicted eldest first
+        assertFalse(memory.contains(key(41)));
+        for (int i = 42; i <= 50; i++) {
+            assertTrue(memory.contains(key(i)));
+        }
+    }
+
+    /**
+     * an full protected segment demotes its eldest image back to probation, where it gets evicted first
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void protectedOverflowDemotes() throws IOException {
+        for (int i = 0; i < 9; i++) {
+            memory.put(key(i), image(i, IMAGE));
+            memory.get(key(i));
+        }
+        memory.put(key(9), image(9, IMAGE));
+        memory.put(key(10), image(10, IMAGE));
+        assertFalse(memory.contains(key(0)));
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(memory.contains(key(i)));
+        }
+        // hits refresh the recency inside the protected segment, promoting 9 demotes the eldest one
+        memory.get(key(1));
+        memory.get(key(2));
+        memory.get(key(3));
+        memory.get(key(9));
+        memory.put(key(11), image(11, IMAGE));
+        assertFalse(memory.contains(key(10)));
+        assertTrue(memory.contains(key(4)));
+        memory.put(key(12), image(12, IMAGE));
+        assertFalse(memory.contains(key(4)));
+        for (final int i : new int[] { 1, 2, 3, 5, 9, 11, 12 }) {
+            assertTrue(memory.contains(key(i)));
+        }
+    }
+
+    /**
+     * images larger than the probation segment aren't held
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void largeImagesAreIgnored() throws IOException {
+        assertTrue(memory.fits(BUDGET / 5));
+        assertFalse(memory.fits(BUDGET / 5 + 1));
+        memory.put(key(0), image(0, BUDGET / 5 + 1));
+        assertFalse(memory.contains(key(0)));
+        assertEquals(0, memory.getSize());
+    }
+
+    /**
+     * replaced and removed images give back their size
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void replaceAndRemove() throws IOException {
+        memory.put(key(0), image(0, IMAGE));
+        memory.get(key(0));
+        memory.put(key(0), image(1, IMAGE / 2));
+        assertEquals(IMAGE / 2, memory.getSize());
+        assertEquals(1, memory.getCount());
+        assertEquals(image(1, IMAGE / 2).getETag(), memory.get(key(0)).getETag());
+        memory.remove(key(0));
+        assertEquals(0, memory.getSize());
+        assertEquals(0, memory.getCount());
+        assertNull(memory.get(key(0)));
+    }
+
+    /**
+     * an budget must be given
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetMustBePositive() {
+        new MemoryCache(0);
+    }
+
+    /**
+     * gets an distinct key
+     * 
+     * @param i
+     * @return
+     */
+    private static CacheKey key(final int i) {
+        return new CacheKey("/images/" + i + ".jpg", 100, 0, 0, Image.Quality.HIGH, "jpg", -1);
+    }
+
+    /**
+     * gets an distinct image of an size
+     * 
+     * @param i
+     * @param size
+     * @return
+     */
+    private static ImgCache.CachedImage image(final int i, final int size) {
+        final byte[] data = new byte[size];
+        Arrays.fill(data, (byte) i);
+        return new ImgCache.CachedImage(i + ".jpg", new Date(1000L * i), data, XXHash64.hash(data));
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * checks of the separable resampler
+ * 
+ * @author xyan
+ * 
+ */
+public class ResamplerTest {
+    private static ForkJoinPool pool;
+
+    @BeforeClass
+    public static void setUpClass() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        pool.shutdown();
+    }
+
+    /**
+     * row bands produce exactly the single threaded result, for every filter, with and without alpha and with band
+     * counts not dividing the height
+     */
+    @Test
+    public void parallelMatchesSerial() {
+        for (final int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB }) {
+            final BufferedImage input = noise(641, 479, type, type);
+            final Rectangle region = new Rectangle(13, 7, 601, 455);
+            for (final Resampler.Filter filter : Resampler.Filter.values()) {
+                for (final int[] size : new int[][] { { 203, 151 }, { 900, 677 } }) {
+                    final BufferedImage serial = Resampler.resample(input, region, size[0], size[1], filter, null);
+                    final BufferedImage parallel = Resampler.resample(input, region, size[0], size[1], filter, pool);
+                    assertArrayEquals(filter + " " + size[0], pixels(serial), pixels(parallel));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param type
+     * @param seed
+     * @return
+     */
+    static BufferedImage noise(final int width, final int height, final int type, final long seed) {
+        final BufferedImage ret = new BufferedImage(width, height, type);
+        final Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ret.setRGB(x, y, random.nextInt());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param image
+     * @return
+     */
+    private static int[] pixels(final BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
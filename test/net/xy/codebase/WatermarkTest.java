@@ -0,0 +1,209 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * checks of the mark placement and blending
+ * 
+ * @author xyan
+ * 
+ */
+public class WatermarkTest {
+    private static final int SIZE = 100;
+    /**
+     * 2% of the target size
+     */
+    private static final int MARGIN = 2;
+    /**
+     * packed int rasters of all alpha kinds and an interleaved byte one
+     */
+    private static final int[] TYPES = new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_3BYTE_BGR };
+
+    /**
+     * the blend matches source over compositing of java2d
+     */
+    @Test
+    public void blendsLikeSourceOver() {
+        final BufferedImage mark = gradient(16, 12);
+        for (final int type : TYPES) {
+            for (final float opacity : new float[] { 1f, 0.6f, 0.25f }) {
+                final BufferedImage expected = background(type);
+                final Graphics2D g = expected.createGraphics();
+                g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+                g.drawImage(mark, MARGIN, MARGIN, null);
+                g.dispose();
+                final BufferedImage actual = background(type);
+                new Watermark(mark, Watermark.Position.TOP_LEFT, opacity, 0).apply(actual);
+                assertSimilar("type " + type + " opacity " + opacity, expected, actual);
+            }
+        }
+    }
+
+    /**
+     * marks are placed inside the margin by their position and scaled by the target width
+     */
+    @Test
+    public void placement() {
+        final BufferedImage mark = solid(10, 10);
+        assertBounds(new Rectangle(MARGIN, MARGIN, 10, 10), new Watermark(mark, Watermark.Position.TOP_LEFT, 1f, 0));
+        assertBounds(new Rectangle(45, 45, 10, 10), new Watermark(mark, Watermark.Position.CENTER, 1f, 0));
+        assertBounds(new Rectangle(88, 88, 10, 10), new Watermark(mark, Watermark.Position.BOTTOM_RIGHT, 1f, 0));
+        assertBounds(new Rectangle(45, MARGIN, 10, 10), new Watermark(mark, Watermark.Position.TOP, 1f, 0));
+        assertBounds(new Rectangle(MARGIN, 88, 10, 10), new Watermark(mark, Watermark.Position.BOTTOM_LEFT, 1f, 0));
+        assertBounds(new Rectangle(48, 48, 50, 50), new Watermark(mark, Watermark.Position.BOTTOM_RIGHT, 1f, 0.5));
+        // never larger than the target inside its margins
+        assertBounds(new Rectangle(MARGIN, 26, 96, 48), new Watermark(solid(200, 100), Watermark.Position.LEFT, 1f,
+                0));
+    }
+
+    /**
+     * an invisible mark keeps the image
+     */
+    @Test
+    public void transparent() {
+        final BufferedImage image = background(BufferedImage.TYPE_INT_RGB);
+        new Watermark(solid(10, 10), Watermark.Position.CENTER, 0f, 0).apply(image);
+        assertSimilar("opacity 0", background(BufferedImage.TYPE_INT_RGB), image);
+    }
+
+    /**
+     * the opacity must be an share
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void opacityOutOfRange() {
+        new Watermark(solid(10, 10), Watermark.Position.CENTER, 1.5f, 0);
+    }
+
+    /**
+     * equal marks share their identity, any difference changes it
+     */
+    @Test
+    public void identity() {
+        final Watermark mark = new Watermark(solid(10, 10), Watermark.Position.CENTER, 0.5f, 0.2);
+        assertEquals(mark.getIdentity(), new Watermark(solid(10, 10), Watermark.Position.CENTER, 0.5f, 0.2)
+                .getIdentity());
+        final BufferedImage changed = solid(10, 10);
+        changed.setRGB(3, 3, 0xff000000);
+        final Watermark[] others = new Watermark[] {
+                new Watermark(changed, Watermark.Position.CENTER, 0.5f, 0.2),
+                new Watermark(solid(10, 11), Watermark.Position.CENTER, 0.5f, 0.2),
+                new Watermark(solid(10, 10), Watermark.Position.TOP, 0.5f, 0.2),
+                new Watermark(solid(10, 10), Watermark.Position.CENTER, 0.6f, 0.2),
+                new Watermark(solid(10, 10), Watermark.Position.CENTER, 0.5f, 0.3) };
+        for (final Watermark other : others) {
+            assertFalse(other.toString(), mark.getIdentity() == other.getIdentity());
+        }
+    }
+
+    /**
+     * checks which pixels of an black target got marked
+     * 
+     * @param expected
+     * @param mark
+     */
+    private static void assertBounds(final Rectangle expected, final Watermark mark) {
+        final BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        mark.apply(image);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                assertEquals(mark + " at " + x + "," + y, expected.contains(x, y),
+                        (image.getRGB(x, y) & 0xffffff) != 0);
+            }
+        }
+    }
+
+    /**
+     * compares all channels premultiplied with an tolerance for rounding, which straight channels of translucent
+     * pixels amplify
+     * 
+     * @param message
+     * @param expected
+     * @param actual
+     */
+    private static void assertSimilar(final String message, final BufferedImage expected, final BufferedImage actual) {
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final int e = expected.getRGB(x, y);
+                final int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    final int weight = shift == 24 ? 255 : e >>> 24;
+                    assertTrue(message + " at " + x + "," + y + ": " + Integer.toHexString(e) + " "
+                            + Integer.toHexString(a), Math.abs((e >>> shift & 0xff) * weight - (a >>> shift & 0xff)
+                            * (shift == 24 ? 255 : a >>> 24)) <= 2 * 255);
+                }
+            }
+        }
+    }
+
+    /**
+     * creates an target with varying color and alpha
+     * 
+     * @param type
+     * @return
+     */
+    private static BufferedImage background(final int type) {
+        final BufferedImage ret = new BufferedImage(SIZE, SIZE, type);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                ret.setRGB(x, y, (55 + x * 2) << 24 | x * 2 << 16 | y * 2 << 8 | 200 - x - y);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * creates an mark with varying color and alpha
+     * 
+     * @param width
+     * @param height
+     * @return
+     */
+    private static BufferedImage gradient(final int width, final int height) {
+        final BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ret.setRGB(x, y, x * 255 / (width - 1) << 24 | 255 - y * 20 << 16 | x * 15 << 8 | 128);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * creates an opaque white mark
+     * 
+     * @param width
+     * @param height
+     * @return
+     */
+    private static BufferedImage solid(final int width, final int height) {
+        final BufferedImage ret = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ret.setRGB(x, y, 0xffffffff);
+            }
+        }
+        return ret;
+    }
+}
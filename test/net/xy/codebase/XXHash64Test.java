@@ -0,0 +1,106 @@
+/**
+ * This file is part of XY.Codebase, Copyright 2011 (C) Xyan Kruse, Xyan@gmx.net, Xyan.kilu.de
+ * 
+ * XY.Codebase is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * XY.Codebase is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with XY.Codebase. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package net.xy.codebase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * checks of the content hash against the reference implementation
+ * 
+ * @author xyan
+ * 
+ */
+public class XXHash64Test {
+    /**
+     * seed used for the seeded vectors
+     */
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+    /**
+     * lengths covering the tail paths and the 32 byte stripes
+     */
+    private static final int[] LENGTHS = new int[] { 4, 8, 31, 32, 33, 100 };
+    /**
+     * reference hashes of the first LENGTHS bytes of data(), unseeded and seeded
+     */
+    private static final long[] UNSEEDED = new long[] { 0x9bb64b7d66ee9fdaL, 0xdab99d95c6f90092L,
+            0xa2aa5f33cc4a6119L, 0x23c3c17ef790fd97L, 0x50a7cfc7ba588784L, 0xa61f8d4c170fe531L };
+    private static final long[] SEEDED = new long[] { 0x6f0a6c97d68bf353L, 0xa2f1e28437a78a1bL,
+            0x755437271d1d0a84L, 0xbf624b932c090428L, 0x7aceaf1e9d34ea35L, 0xf6d8f65c625abb4fL };
+
+    /**
+     * published vectors
+     */
+    @Test
+    public void publishedVectors() {
+        assertEquals(0xef46db3751d8e999L, XXHash64.hash(new byte[0]));
+        assertEquals(0xd24ec4f1a98c6e5bL, XXHash64.hash(bytes("a")));
+        assertEquals(0x44bc2cf5ad770999L, XXHash64.hash(bytes("abc")));
+        assertEquals(0xfbcea83c8a378bf1L, XXHash64.hash(bytes("Nobody inspects the spammish repetition")));
+        final byte[] seeded = bytes("xxhash");
+        assertEquals(0xb559b98d844e0635L, XXHash64.hash(seeded, 0, seeded.length, 20141025));
+    }
+
+    /**
+     * all lengths around the stripe size, with and without seed
+     */
+    @Test
+    public void lengths() {
+        final byte[] data = data();
+        for (int i = 0; i < LENGTHS.length; i++) {
+            assertEquals("length " + LENGTHS[i], UNSEEDED[i], XXHash64.hash(Arrays.copyOf(data, LENGTHS[i])));
+            assertEquals("seeded length " + LENGTHS[i], SEEDED[i], XXHash64.hash(data, 0, LENGTHS[i], SEED));
+        }
+    }
+
+    /**
+     * an part of an array hashes like an copy of it
+     */
+    @Test
+    public void offsets() {
+        final byte[] data = data();
+        final byte[] shifted = new byte[data.length + 13];
+        System.arraycopy(data, 0, shifted, 7, data.length);
+        for (int i = 0; i < LENGTHS.length; i++) {
+            assertEquals(UNSEEDED[i], XXHash64.hash(shifted, 7, LENGTHS[i], 0));
+            assertEquals(SEEDED[i], XXHash64.hash(shifted, 7, LENGTHS[i], SEED));
+        }
+    }
+
+    /**
+     * gets the ascii bytes of an string
+     * 
+     * @param value
+     * @return
+     */
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * gets the vector input of 100 bytes
+     * 
+     * @return
+     */
+    private static byte[] data() {
+        final byte[] ret = new byte[100];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) (i * 7 + 3);
+        }
+        return ret;
+    }
+}